@@ -0,0 +1,176 @@
+/*
+ * #%L
+ * Cell Counter plugin for ImageJ.
+ * %%
+ * Copyright (C) 2007 - 2015 Kurt De Vos and Board of Regents of the
+ * University of Wisconsin-Madison.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * View of a {@link VirtualStack} that keeps the most recently used decoded
+ * planes in memory. The counter window and the measurements read slices
+ * through it, so revisiting a slice does not decode it again while the
+ * memory used stays bounded no matter how large the stack is. Planes are
+ * dropped least recently used first; as with any virtual stack, unsaved
+ * edits to a dropped plane are lost.
+ */
+public class CellCntrCachedStack extends VirtualStack {
+
+	/** At most this part of the maximum heap is spent on cached planes. */
+	private static final int MEMORY_FRACTION = 8;
+	private static final int MIN_CACHED_PLANES = 4;
+
+	private final ImageStack source;
+	private final int capacity;
+	private final LinkedHashMap<Integer, ImageProcessor> cache;
+
+	public CellCntrCachedStack(final ImageStack source) {
+		super(source.getWidth(), source.getHeight(), source.getColorModel(), null);
+		this.source = source;
+		final long planeBytes =
+			(long) source.getWidth() * source.getHeight() *
+				bytesPerPixel(source.getBitDepth());
+		final long budget = Runtime.getRuntime().maxMemory() / MEMORY_FRACTION;
+		capacity =
+			(int) Math.max(MIN_CACHED_PLANES, Math.min(source.getSize(), budget /
+				Math.max(1, planeBytes)));
+		cache = new LinkedHashMap<Integer, ImageProcessor>(16, 0.75f, true) {
+
+			@Override
+			protected boolean removeEldestEntry(
+				final Map.Entry<Integer, ImageProcessor> eldest)
+			{
+				return size() > capacity;
+			}
+		};
+	}
+
+	@Override
+	public int getSize() {
+		return source.getSize();
+	}
+
+	@Override
+	public String getSliceLabel(final int n) {
+		return source.getSliceLabel(n);
+	}
+
+	@Override
+	public void setSliceLabel(final String label, final int n) {
+		source.setSliceLabel(label, n);
+	}
+
+	@Override
+	public int getBitDepth() {
+		return source.getBitDepth();
+	}
+
+	/**
+	 * Returns a new processor for slice {@code n} that shares the pixels of
+	 * the cached plane, so that callers on different threads (the window and
+	 * the measurements) each get their own roi, calibration table and display
+	 * range. This may be called from several threads; a plane is decoded
+	 * outside the lock so that different slices can be read concurrently.
+	 */
+	@Override
+	public ImageProcessor getProcessor(final int n) {
+		return wrap(getCached(n));
+	}
+
+	@Override
+	public Object getPixels(final int n) {
+		return getCached(n).getPixels();
+	}
+
+	@Override
+	public void setPixels(final Object pixels, final int n) {
+		getCached(n).setPixels(pixels);
+	}
+
+	@Override
+	public void deleteSlice(final int n) {
+		source.deleteSlice(n);
+		synchronized (cache) {
+			// the slices behind n have been renumbered
+			cache.clear();
+		}
+	}
+
+	// -- Helper methods --
+
+	/** Returns the decoded plane of slice {@code n}, from the cache if so. */
+	private ImageProcessor getCached(final int n) {
+		final Integer key = Integer.valueOf(n);
+		synchronized (cache) {
+			final ImageProcessor ip = cache.get(key);
+			if (ip != null) return ip;
+		}
+		final ImageProcessor ip = source.getProcessor(n);
+		synchronized (cache) {
+			// another thread may have decoded the same plane meanwhile
+			final ImageProcessor cached = cache.get(key);
+			if (cached != null) return cached;
+			cache.put(key, ip);
+		}
+		return ip;
+	}
+
+	/** Returns a new processor on the pixels of {@code ip}, not a copy. */
+	static ImageProcessor wrap(final ImageProcessor ip) {
+		final int width = ip.getWidth();
+		final int height = ip.getHeight();
+		final Object pixels = ip.getPixels();
+		if (pixels instanceof byte[]) {
+			return new ByteProcessor(width, height, (byte[]) pixels,
+				ip.getColorModel());
+		}
+		if (pixels instanceof short[]) {
+			return new ShortProcessor(width, height, (short[]) pixels,
+				ip.getColorModel());
+		}
+		if (pixels instanceof float[]) {
+			return new FloatProcessor(width, height, (float[]) pixels,
+				ip.getColorModel());
+		}
+		return new ColorProcessor(width, height, (int[]) pixels);
+	}
+
+	private static int bytesPerPixel(final int bitDepth) {
+		switch (bitDepth) {
+			case 16:
+				return 2;
+			case 24:
+			case 32:
+				return 4;
+			default:
+				return 1;
+		}
+	}
+
+}
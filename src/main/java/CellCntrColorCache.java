@@ -0,0 +1,74 @@
+/*
+ * #%L
+ * Cell Counter plugin for ImageJ.
+ * %%
+ * Copyright (C) 2007 - 2015 Kurt De Vos and Board of Regents of the
+ * University of Wisconsin-Madison.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import ij.IJ;
+
+import java.awt.Color;
+import java.util.Arrays;
+
+import org.scijava.Context;
+import org.scijava.options.OptionsService;
+
+/**
+ * Marker colours by counter type, resolved from the {@link CellCounterOptions}
+ * once and then served from memory until the options are saved again.
+ */
+public class CellCntrColorCache {
+
+	private static volatile Color[] colors = new Color[0];
+
+	private CellCntrColorCache() {}
+
+	public static Color getColor(final int type) {
+		final Color[] cached = colors;
+		if (type >= 0 && type < cached.length && cached[type] != null) {
+			return cached[type];
+		}
+		return resolve(type);
+	}
+
+	/** Forgets all cached colours; called when the options change. */
+	public static synchronized void invalidate() {
+		colors = new Color[0];
+	}
+
+	// -- Helper methods --
+
+	private static synchronized Color resolve(final int type) {
+		Color[] cached = colors;
+		if (type >= 0 && type < cached.length && cached[type] != null) {
+			return cached[type];
+		}
+		final Context c = (Context) IJ.runPlugIn("org.scijava.Context", "");
+		final OptionsService optionsService = c.service(OptionsService.class);
+		final CellCounterOptions options =
+			optionsService.getOptions(CellCounterOptions.class);
+		final Color color = options.getColor(type);
+		if (type < 0) return color;
+		cached = Arrays.copyOf(cached, Math.max(cached.length, type + 1));
+		cached[type] = color;
+		colors = cached;
+		return color;
+	}
+
+}
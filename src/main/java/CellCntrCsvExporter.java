@@ -0,0 +1,244 @@
+/*
+ * #%L
+ * Cell Counter plugin for ImageJ.
+ * %%
+ * Copyright (C) 2007 - 2015 Kurt De Vos and Board of Regents of the
+ * University of Wisconsin-Madison.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Vector;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streams the markers to a comma- or tab-separated file, one row per marker
+ * with its type, slice, C/Z/T position, pixel and calibrated coordinates and
+ * optionally the pixel value under it. The rows are collected in chunks of
+ * a fixed size, each written with the writer of {@link CellCntrTable}
+ * before the next one is filled, so the memory needed does not grow with
+ * the number of markers, even on a single slice. A path ending in ".gz" is
+ * compressed with gzip.
+ */
+public class CellCntrCsvExporter {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final String path;
+	private final CellCntrProgress progress;
+	private char separator = ',';
+	private boolean includeValues;
+
+	public CellCntrCsvExporter(final String path) {
+		this(path, null);
+	}
+
+	public CellCntrCsvExporter(final String path,
+		final CellCntrProgress progress)
+	{
+		this.path = path;
+		this.progress = progress;
+	}
+
+	/** Sets the column separator, a comma by default. */
+	public void setSeparator(final char separator) {
+		this.separator = separator;
+	}
+
+	/** Adds a column with the pixel value under each marker. */
+	public void setIncludeValues(final boolean includeValues) {
+		this.includeValues = includeValues;
+	}
+
+	/**
+	 * Writes the markers of {@code imp}. The rows are ordered like the
+	 * measurements: by slice, then by counter type, then by placement.
+	 *
+	 * @return false if the file could not be written or writing was canceled
+	 */
+	public boolean export(final ImagePlus imp,
+		final Vector<CellCntrMarkerVector> typeVector)
+	{
+		long total = 0;
+		for (final CellCntrMarkerVector mv : typeVector) {
+			mv.ensureIndexed();
+			total += mv.size();
+		}
+		final ImageStack stack = includeValues ? imp.getStack() : null;
+		Writer out = null;
+		try {
+			OutputStream os =
+				new BufferedOutputStream(new FileOutputStream(path), BUFFER_SIZE);
+			if (path.endsWith(".gz")) os = new GZIPOutputStream(os, BUFFER_SIZE);
+			out = new OutputStreamWriter(os, UTF8);
+
+			final Calibration cal = imp.getCalibration();
+			final Chunk chunk = new Chunk(cal.getUnit());
+			chunk.write(out, true); // the headings only
+			long done = 0;
+			for (int slice = 1; slice <= imp.getStackSize(); slice++) {
+				if (!hasMarkers(typeVector, slice)) continue;
+				// from the slice we get the array [channel, slice, frame]
+				final int[] position = imp.convertIndexToPosition(slice);
+				final double z = (position[1] - 1) * cal.pixelDepth;
+				ImageProcessor ip = null;
+				if (stack != null) {
+					ip = stack.getProcessor(slice);
+					ip.setCalibrationTable(cal.getCTable());
+				}
+				for (final CellCntrMarkerVector mv : typeVector) {
+					final int count = mv.getSliceCount(slice);
+					for (int k = 0; k < count; k++) {
+						final int n = mv.getSliceMarker(slice, k);
+						final int x = mv.getX(n);
+						final int y = mv.getY(n);
+						final int row = chunk.rows++;
+						chunk.types[row] = mv.getType();
+						chunk.slices[row] = slice;
+						chunk.channels[row] = position[0];
+						chunk.zPositions[row] = position[1];
+						chunk.frames[row] = position[2];
+						chunk.xs[row] = x;
+						chunk.ys[row] = y;
+						chunk.xCal[row] = x * cal.pixelWidth;
+						chunk.yCal[row] = y * cal.pixelHeight;
+						chunk.zCal[row] = z;
+						if (ip != null) {
+							chunk.values[row] = ip.getPixelValue(x, y);
+						}
+						if (chunk.rows == CellCntrTable.CHUNK_ROWS) {
+							done += chunk.rows;
+							chunk.write(out, false);
+							reportProgress(done, total);
+						}
+					}
+				}
+			}
+			chunk.write(out, false);
+			out.close();
+			out = null;
+			reportProgress(total, total);
+			return true;
+		}
+		catch (final InterruptedIOException e) {
+			closeQuietly(out);
+			out = null;
+			new File(path).delete(); // canceled
+			return false;
+		}
+		catch (final IOException e) {
+			System.out.println(e.getMessage());
+			return false;
+		}
+		finally {
+			closeQuietly(out);
+		}
+	}
+
+	// -- Helper methods --
+
+	private static void closeQuietly(final Writer out) {
+		if (out == null) return;
+		try {
+			out.close();
+		}
+		catch (final IOException e) {
+			System.out.println(e.getMessage());
+		}
+	}
+
+	private void reportProgress(final long done, final long total)
+		throws InterruptedIOException
+	{
+		if (progress == null) return;
+		progress.progress(done, total);
+		if (progress.isCanceled()) {
+			throw new InterruptedIOException("Export canceled");
+		}
+	}
+
+	private static boolean hasMarkers(
+		final Vector<CellCntrMarkerVector> typeVector, final int slice)
+	{
+		for (final CellCntrMarkerVector mv : typeVector) {
+			if (mv.getSliceCount(slice) > 0) return true;
+		}
+		return false;
+	}
+
+	// -- Helper classes --
+
+	/** Columns of up to {@link CellCntrTable#CHUNK_ROWS} rows, reused. */
+	private class Chunk {
+
+		private final String unit;
+		final int[] types = new int[CellCntrTable.CHUNK_ROWS];
+		final int[] slices = new int[CellCntrTable.CHUNK_ROWS];
+		final int[] channels = new int[CellCntrTable.CHUNK_ROWS];
+		final int[] zPositions = new int[CellCntrTable.CHUNK_ROWS];
+		final int[] frames = new int[CellCntrTable.CHUNK_ROWS];
+		final int[] xs = new int[CellCntrTable.CHUNK_ROWS];
+		final int[] ys = new int[CellCntrTable.CHUNK_ROWS];
+		final double[] xCal = new double[CellCntrTable.CHUNK_ROWS];
+		final double[] yCal = new double[CellCntrTable.CHUNK_ROWS];
+		final double[] zCal = new double[CellCntrTable.CHUNK_ROWS];
+		final double[] values = new double[CellCntrTable.CHUNK_ROWS];
+		int rows;
+
+		Chunk(final String unit) {
+			this.unit = unit;
+		}
+
+		/** Writes the rows filled so far and starts over. */
+		void write(final Writer out, final boolean withHeadings)
+			throws IOException
+		{
+			// the columns may be longer than the table
+			final CellCntrTable table = new CellCntrTable(rows);
+			table.addColumn("Type", types);
+			table.addColumn("Slice", slices);
+			table.addColumn("C-pos", channels);
+			table.addColumn("Z-pos", zPositions);
+			table.addColumn("T-pos", frames);
+			table.addColumn("X", xs);
+			table.addColumn("Y", ys);
+			table.addColumn("X(" + unit + ")", xCal);
+			table.addColumn("Y(" + unit + ")", yCal);
+			table.addColumn("Z(" + unit + ")", zCal);
+			if (includeValues) {
+				table.addColumn("Value", values, CellCntrTable.VALUE_DECIMALS);
+			}
+			table.write(out, separator, withHeadings);
+			rows = 0;
+		}
+	}
+
+}
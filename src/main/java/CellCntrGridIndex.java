@@ -0,0 +1,299 @@
+/*
+ * #%L
+ * Cell Counter plugin for ImageJ.
+ * %%
+ * Copyright (C) 2007 - 2015 Kurt De Vos and Board of Regents of the
+ * University of Wisconsin-Madison.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.Arrays;
+
+/**
+ * Uniform grid over the markers of one counter type, with one grid per slice.
+ * Only cells that hold markers are stored, in a hash table. Each grid cell
+ * holds the column slots of the markers (in the owning
+ * {@link CellCntrMarkerVector}) that fall inside it, so nearest-marker queries
+ * only visit the cells around the query point. Slots do not change when
+ * other markers are removed, so a removal only touches its own cell.
+ * Markers on negative slices, or beyond {@link CellCntrSliceIndex#MAX_SLICE},
+ * are not indexed.
+ */
+public class CellCntrGridIndex {
+
+	/** Cells are 64 x 64 pixels. */
+	private static final int CELL_SHIFT = 6;
+	private static final int CELL_SIZE = 1 << CELL_SHIFT;
+
+	private Grid[] grids = new Grid[0];
+
+	// state of the current nearest-marker query
+	private int bestIndex;
+	private long bestDist;
+
+	public void add(final int x, final int y, final int z, final int n) {
+		if (z < 0 || z > CellCntrSliceIndex.MAX_SLICE) return;
+		if (z >= grids.length) grids = Arrays.copyOf(grids, z + 1);
+		if (grids[z] == null) grids[z] = new Grid();
+		grids[z].add(x >> CELL_SHIFT, y >> CELL_SHIFT, n);
+	}
+
+	public void remove(final int x, final int y, final int z, final int n) {
+		if (z < 0 || z >= grids.length || grids[z] == null) return;
+		grids[z].remove(x >> CELL_SHIFT, y >> CELL_SHIFT, n);
+	}
+
+	public void clear() {
+		grids = new Grid[0];
+	}
+
+	/**
+	 * Returns the index of the marker on slice {@code z} closest to
+	 * ({@code x}, {@code y}), or -1 if the slice has no markers. Of several
+	 * equally close markers the one with the lowest index wins. The
+	 * coordinate columns of the owning vector are passed in to compute the
+	 * distances.
+	 */
+	public int nearest(final int x, final int y, final int z, final int[] xs,
+		final int[] ys)
+	{
+		if (z < 0 || z >= grids.length || grids[z] == null) return -1;
+		final Grid grid = grids[z];
+		if (grid.count == 0) return -1;
+
+		bestIndex = -1;
+		bestDist = Long.MAX_VALUE;
+		final int qcx = x >> CELL_SHIFT;
+		final int qcy = y >> CELL_SHIFT;
+
+		// rings closer than the bounding box of the cells are empty
+		int r = Math.max(Math.max(grid.minCx - qcx, qcx - grid.maxCx),
+			Math.max(grid.minCy - qcy, qcy - grid.maxCy));
+		if (r < 0) r = 0;
+		final int lastRingX = Math.max(qcx - grid.minCx, grid.maxCx - qcx);
+		final int lastRingY = Math.max(qcy - grid.minCy, grid.maxCy - qcy);
+		final int lastRing = Math.max(lastRingX, lastRingY);
+
+		// far-flung markers make for large, mostly empty rings; once a ring
+		// would visit more cells than there are, look at every cell instead
+		int visited = 0;
+		for (; r <= lastRing; r++) {
+			visited += r == 0 ? 1 : 8 * r;
+			if (visited > 2 * grid.cellCount) {
+				for (int c = 0; c < grid.cellCount; c++) {
+					scanCell(grid, c, x, y, xs, ys);
+				}
+				return bestIndex;
+			}
+			for (int cx = qcx - r; cx <= qcx + r; cx++) {
+				scanCell(grid, grid.find(cx, qcy - r), x, y, xs, ys);
+				if (r > 0) scanCell(grid, grid.find(cx, qcy + r), x, y, xs, ys);
+			}
+			for (int cy = qcy - r + 1; cy <= qcy + r - 1; cy++) {
+				scanCell(grid, grid.find(qcx - r, cy), x, y, xs, ys);
+				scanCell(grid, grid.find(qcx + r, cy), x, y, xs, ys);
+			}
+			// every cell of the next ring is at least r cells away
+			final long reach = (long) r * CELL_SIZE;
+			if (bestIndex >= 0 && bestDist < reach * reach) break;
+		}
+		return bestIndex;
+	}
+
+	/**
+	 * Stores in {@code result} the indices of the markers on slice {@code z}
+	 * whose coordinates lie within [{@code x0}, {@code x1}] x [{@code y0},
+	 * {@code y1}] and returns how many there are. If that is more than
+	 * {@code result} can hold, only the first {@code result.length} are
+	 * stored, so the caller can retry with a big enough array.
+	 */
+	public int query(final int z, final int x0, final int y0, final int x1,
+		final int y1, final int[] xs, final int[] ys, final int[] result)
+	{
+		if (z < 0 || z >= grids.length || grids[z] == null) return 0;
+		final Grid grid = grids[z];
+		final int cx0 = Math.max(x0 >> CELL_SHIFT, grid.minCx);
+		final int cy0 = Math.max(y0 >> CELL_SHIFT, grid.minCy);
+		final int cx1 = Math.min(x1 >> CELL_SHIFT, grid.maxCx);
+		final int cy1 = Math.min(y1 >> CELL_SHIFT, grid.maxCy);
+		if (cx0 > cx1 || cy0 > cy1) return 0;
+		int found = 0;
+		final long area = ((long) cx1 - cx0 + 1) * ((long) cy1 - cy0 + 1);
+		if (area > grid.cellCount) {
+			// fewer cells hold markers than the rectangle covers
+			for (int c = 0; c < grid.cellCount; c++) {
+				if (grid.cellX[c] < cx0 || grid.cellX[c] > cx1 ||
+					grid.cellY[c] < cy0 || grid.cellY[c] > cy1) continue;
+				found = collect(grid, c, x0, y0, x1, y1, xs, ys, result, found);
+			}
+			return found;
+		}
+		for (int cy = cy0; cy <= cy1; cy++) {
+			for (int cx = cx0; cx <= cx1; cx++) {
+				final int c = grid.find(cx, cy);
+				if (c >= 0) {
+					found =
+						collect(grid, c, x0, y0, x1, y1, xs, ys, result, found);
+				}
+			}
+		}
+		return found;
+	}
+
+	// -- Helper methods --
+
+	private static int collect(final Grid grid, final int c, final int x0,
+		final int y0, final int x1, final int y1, final int[] xs,
+		final int[] ys, final int[] result, int found)
+	{
+		final int[] items = grid.items[c];
+		final int count = grid.sizes[c];
+		for (int i = 0; i < count; i++) {
+			final int n = items[i];
+			if (xs[n] < x0 || xs[n] > x1 || ys[n] < y0 || ys[n] > y1) continue;
+			if (found < result.length) result[found] = n;
+			found++;
+		}
+		return found;
+	}
+
+	private void scanCell(final Grid grid, final int c, final int x,
+		final int y, final int[] xs, final int[] ys)
+	{
+		if (c < 0) return;
+		final int[] items = grid.items[c];
+		final int count = grid.sizes[c];
+		for (int i = 0; i < count; i++) {
+			final int n = items[i];
+			final long dx = xs[n] - x;
+			final long dy = ys[n] - y;
+			final long dist = dx * dx + dy * dy;
+			if (dist < bestDist || (dist == bestDist && n < bestIndex)) {
+				bestDist = dist;
+				bestIndex = n;
+			}
+		}
+	}
+
+	// -- Helper classes --
+
+	/**
+	 * The cells of one slice that have held markers so far, found through a
+	 * hash table on their coordinates. Memory grows with the number of
+	 * occupied cells, however far apart the markers are.
+	 */
+	private static class Grid {
+
+		private int minCx = Integer.MAX_VALUE;
+		private int minCy = Integer.MAX_VALUE;
+		private int maxCx = Integer.MIN_VALUE;
+		private int maxCy = Integer.MIN_VALUE;
+
+		// the occupied cells
+		private int cellCount;
+		private int[] cellX = new int[8];
+		private int[] cellY = new int[8];
+		private int[][] items = new int[8][];
+		private int[] sizes = new int[8];
+		private int count;
+
+		/** Open-addressing table of cell numbers plus one; 0 is empty. */
+		private int[] table = new int[16];
+
+		void add(final int cx, final int cy, final int n) {
+			int c = find(cx, cy);
+			if (c < 0) c = addCell(cx, cy);
+			int[] cell = items[c];
+			if (cell == null) {
+				cell = new int[4];
+				items[c] = cell;
+			}
+			else if (sizes[c] == cell.length) {
+				cell = Arrays.copyOf(cell, cell.length * 2);
+				items[c] = cell;
+			}
+			cell[sizes[c]++] = n;
+			count++;
+		}
+
+		void remove(final int cx, final int cy, final int n) {
+			final int c = find(cx, cy);
+			if (c < 0) return;
+			final int[] cell = items[c];
+			for (int i = 0; i < sizes[c]; i++) {
+				if (cell[i] == n) {
+					cell[i] = cell[--sizes[c]];
+					count--;
+					return;
+				}
+			}
+		}
+
+		/** Returns the number of the given cell, or -1 if it never held any. */
+		int find(final int cx, final int cy) {
+			final int mask = table.length - 1;
+			for (int slot = hash(cx, cy) & mask;; slot = (slot + 1) & mask) {
+				final int c = table[slot] - 1;
+				if (c < 0) return -1;
+				if (cellX[c] == cx && cellY[c] == cy) return c;
+			}
+		}
+
+		private int addCell(final int cx, final int cy) {
+			if (cellCount == cellX.length) {
+				final int capacity = cellCount * 2;
+				cellX = Arrays.copyOf(cellX, capacity);
+				cellY = Arrays.copyOf(cellY, capacity);
+				items = Arrays.copyOf(items, capacity);
+				sizes = Arrays.copyOf(sizes, capacity);
+			}
+			final int c = cellCount++;
+			cellX[c] = cx;
+			cellY[c] = cy;
+			minCx = Math.min(minCx, cx);
+			minCy = Math.min(minCy, cy);
+			maxCx = Math.max(maxCx, cx);
+			maxCy = Math.max(maxCy, cy);
+			// keep the table at most half full
+			if (2 * cellCount > table.length) {
+				table = new int[table.length * 2];
+				for (int i = 0; i < cellCount; i++) {
+					insert(i);
+				}
+			}
+			else {
+				insert(c);
+			}
+			return c;
+		}
+
+		private void insert(final int c) {
+			final int mask = table.length - 1;
+			int slot = hash(cellX[c], cellY[c]) & mask;
+			while (table[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = c + 1;
+		}
+
+		private static int hash(final int cx, final int cy) {
+			final int h = cx * 0x9E3779B1 + cy;
+			return h ^ (h >>> 16);
+		}
+	}
+
+}
@@ -28,12 +28,11 @@ import ij.ImagePlus;
 import ij.gui.ImageCanvas;
 import ij.gui.Roi;
 import ij.gui.Toolbar;
-import ij.measure.Calibration;
-import ij.process.ImageProcessor;
 
 import java.awt.BasicStroke;
 import java.awt.Cursor;
 import java.awt.Font;
+import java.awt.FontMetrics;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Image;
@@ -57,6 +56,7 @@ public class CellCntrImageCanvas extends ImageCanvas {
 	private boolean delmode = false;
 	private boolean showNumbers = true;
 	private boolean showAll = false;
+	private CellCntrOverlay overlay;
 	private final Font font = new Font("SansSerif", Font.PLAIN, 10);
 
 	/** Creates a new instance of CellCntrImageCanvas */
@@ -88,16 +88,30 @@ public class CellCntrImageCanvas extends ImageCanvas {
 		final int x = super.offScreenX(e.getX());
 		final int y = super.offScreenY(e.getY());
 		if (!delmode) {
-			final CellCntrMarker m = new CellCntrMarker(x, y, img.getCurrentSlice());
-			currentMarkerVector.addMarker(m);
+			final int z = img.getCurrentSlice();
+			currentMarkerVector.addMarker(x, y, z);
+			cc.markerAdded(currentMarkerVector, x, y, z);
+			if (overlay != null) {
+				overlay.markerAdded(currentMarkerVector, x, y, z);
+			}
+			repaintMarker(currentMarkerVector, x, y);
 		}
 		else {
-			final CellCntrMarker m =
-				currentMarkerVector.getMarkerFromPosition(new Point(x, y), img
+			final int n =
+				currentMarkerVector.getMarkerIndexFromPosition(new Point(x, y), img
 					.getCurrentSlice());
-			currentMarkerVector.remove(m);
+			if (n >= 0) {
+				final int xM = currentMarkerVector.getX(n);
+				final int yM = currentMarkerVector.getY(n);
+				final int zM = currentMarkerVector.getZ(n);
+				currentMarkerVector.removeMarker(n);
+				cc.markerRemoved(currentMarkerVector, n);
+				if (overlay != null) {
+					overlay.markerRemoved(currentMarkerVector, zM);
+				}
+				repaintMarker(currentMarkerVector, xM, yM);
+			}
 		}
-		repaint();
 		cc.populateTxtFields();
 	}
 
@@ -136,12 +150,36 @@ public class CellCntrImageCanvas extends ImageCanvas {
 
 	private Rectangle srcRect = new Rectangle(0, 0, 0, 0);
 
+	/**
+	 * How far, in screen pixels, a marker glyph and its label may reach from
+	 * the marker position.
+	 */
+	private static final int GLYPH_MARGIN = 24;
+
+	/** Reused buffer for the indices of the markers in view. */
+	private int[] visibleMarkers = new int[256];
+
 	@Override
 	public void paint(final Graphics g) {
 		super.paint(g);
+		// in overlay mode ImageJ draws the markers with the overlay
+		if (overlay != null) return;
 		srcRect = getSrcRect();
-		double xM = 0;
-		double yM = 0;
+		final int slice = img.getCurrentSlice();
+
+		// only markers whose glyph can reach the area being repainted are drawn
+		Rectangle view = srcRect;
+		final Rectangle clip = g.getClipBounds();
+		if (clip != null) {
+			view =
+				view.intersection(new Rectangle(offScreenX(clip.x),
+					offScreenY(clip.y), (int) Math.ceil(clip.width / magnification) + 1,
+					(int) Math.ceil(clip.height / magnification) + 1));
+		}
+		final int margin = (int) Math.ceil(GLYPH_MARGIN / magnification);
+		view =
+			new Rectangle(view.x - margin, view.y - margin, view.width + 2 *
+				margin, view.height + 2 * margin);
 
 		final Graphics2D g2 = (Graphics2D) g;
 		g2.setStroke(new BasicStroke(1f));
@@ -150,27 +188,75 @@ public class CellCntrImageCanvas extends ImageCanvas {
 		final ListIterator<CellCntrMarkerVector> it = typeVector.listIterator();
 		while (it.hasNext()) {
 			final CellCntrMarkerVector mv = it.next();
-			final int typeID = mv.getType();
+			final String label = Integer.toString(mv.getType());
 			g2.setColor(mv.getColor());
-			final ListIterator<CellCntrMarker> mit = mv.listIterator();
-			while (mit.hasNext()) {
-				final CellCntrMarker m = mit.next();
-				final boolean sameSlice = m.getZ() == img.getCurrentSlice();
-				if (sameSlice || showAll) {
-					xM = ((m.getX() - srcRect.x) * magnification);
-					yM = ((m.getY() - srcRect.y) * magnification);
-					if (sameSlice) g2.fillOval((int) xM - 2, (int) yM - 2, 4, 4);
-					else g2.drawOval((int) xM - 2, (int) yM - 2, 4, 4);
-					if (showNumbers) g2.drawString(Integer.toString(typeID),
-						(int) xM + 3, (int) yM - 3);
+			if (showAll) {
+				for (int z = 1; z <= img.getStackSize(); z++) {
+					if (z != slice) drawMarkers(g2, mv, z, view, false, label);
 				}
 			}
+			drawMarkers(g2, mv, slice, view, true, label);
+		}
+	}
+
+	private void drawMarkers(final Graphics2D g2, final CellCntrMarkerVector mv,
+		final int z, final Rectangle view, final boolean sameSlice,
+		final String label)
+	{
+		if (mv.getSliceCount(z) == 0) return;
+		int count = mv.getMarkersInRect(z, view, visibleMarkers);
+		if (count > visibleMarkers.length) {
+			visibleMarkers = new int[count];
+			count = mv.getMarkersInRect(z, view, visibleMarkers);
+		}
+		for (int k = 0; k < count; k++) {
+			final int i = visibleMarkers[k];
+			drawMarker(g2, mv.getX(i), mv.getY(i), sameSlice, label);
+		}
+	}
+
+	private void drawMarker(final Graphics2D g2, final int x, final int y,
+		final boolean sameSlice, final String label)
+	{
+		final int xM = (int) ((x - srcRect.x) * magnification);
+		final int yM = (int) ((y - srcRect.y) * magnification);
+		if (sameSlice) g2.fillOval(xM - 2, yM - 2, 4, 4);
+		else g2.drawOval(xM - 2, yM - 2, 4, 4);
+		if (showNumbers) g2.drawString(label, xM + 3, yM - 3);
+	}
+
+	/**
+	 * Repaints only the part of the canvas covered by the glyph and label of a
+	 * marker at the given image position, rather than the whole image.
+	 */
+	private void repaintMarker(final CellCntrMarkerVector mv, final int x,
+		final int y)
+	{
+		if (overlay != null) {
+			// ImageJ's point glyphs and labels can reach further than ours
+			repaint();
+			return;
 		}
+		final Rectangle src = getSrcRect();
+		final FontMetrics fm = getFontMetrics(font);
+		final int xM = (int) ((x - src.x) * magnification);
+		final int yM = (int) ((y - src.y) * magnification);
+		final int labelWidth =
+			showNumbers ? fm.stringWidth(Integer.toString(mv.getType())) : 0;
+		final int top = yM - 3 - fm.getAscent() - 1;
+		repaint(xM - 3, top, labelWidth + 10, yM + 4 - top);
 	}
 
 	public void removeLastMarker() {
+		if (currentMarkerVector.isEmpty()) return;
+		final int n = currentMarkerVector.size() - 1;
+		final int x = currentMarkerVector.getX(n);
+		final int y = currentMarkerVector.getY(n);
+		final int z = currentMarkerVector.getZ(n);
 		currentMarkerVector.removeLastMarker();
-		repaint();
+		cc.markerRemoved(currentMarkerVector, n);
+		if (overlay != null) overlay.markerRemoved(currentMarkerVector, z);
+		repaintMarker(currentMarkerVector, x, y);
 		cc.populateTxtFields();
 	}
 
@@ -178,9 +264,6 @@ public class CellCntrImageCanvas extends ImageCanvas {
 		final Image image = this.createImage(img.getWidth(), img.getHeight());
 		final Graphics gr = image.getGraphics();
 
-		double xM = 0;
-		double yM = 0;
-
 		try {
 			if (imageUpdated) {
 				imageUpdated = false;
@@ -196,21 +279,19 @@ public class CellCntrImageCanvas extends ImageCanvas {
 		final Graphics2D g2r = (Graphics2D) gr;
 		g2r.setStroke(new BasicStroke(1f));
 
+		final int slice = img.getCurrentSlice();
 		final ListIterator<CellCntrMarkerVector> it = typeVector.listIterator();
 		while (it.hasNext()) {
 			final CellCntrMarkerVector mv = it.next();
-			final int typeID = mv.getType();
+			final String label = Integer.toString(mv.getType());
 			g2r.setColor(mv.getColor());
-			final ListIterator<CellCntrMarker> mit = mv.listIterator();
-			while (mit.hasNext()) {
-				final CellCntrMarker m = mit.next();
-				if (m.getZ() == img.getCurrentSlice()) {
-					xM = m.getX();
-					yM = m.getY();
-					g2r.fillOval((int) xM - 2, (int) yM - 2, 4, 4);
-					if (showNumbers) g2r.drawString(Integer.toString(typeID),
-						(int) xM + 3, (int) yM - 3);
-				}
+			final int count = mv.getSliceCount(slice);
+			for (int k = 0; k < count; k++) {
+				final int i = mv.getSliceMarker(slice, k);
+				final int xM = mv.getX(i);
+				final int yM = mv.getY(i);
+				g2r.fillOval(xM - 2, yM - 2, 4, 4);
+				if (showNumbers) g2r.drawString(label, xM + 3, yM - 3);
 			}
 		}
 
@@ -224,46 +305,13 @@ public class CellCntrImageCanvas extends ImageCanvas {
 		return new ImagePlus("Markers_" + img.getTitle(), image);
 	}
 
+	/**
+	 * Measures the markers without a neighbourhood and shows the results.
+	 *
+	 * @see CellCntrModel#measure
+	 */
 	public void measure() {
-		Calibration cal = img.getCalibration();	
-		String unit = cal.getUnit();
-		String columnHeadings = String.format("Type\tSlice\tX\tY\tValue\tC-pos\tZ-pos\tT-pos\tX(%s)\tY(%s)\tZ(%s)",unit,unit,unit);
-		IJ.setColumnHeadings(columnHeadings);
-		
-		
-		for (int i = 1; i <= img.getStackSize(); i++) {
-			img.setSlice(i);
-			final ImageProcessor ip = img.getProcessor();
-			
-			final ListIterator<CellCntrMarkerVector> it = typeVector.listIterator();
-			while (it.hasNext()) {
-				final CellCntrMarkerVector mv = it.next();
-				final int typeID = mv.getType();
-				final ListIterator<CellCntrMarker> mit = mv.listIterator();
-				while (mit.hasNext()) {
-					final CellCntrMarker m = mit.next();
-					if (m.getZ() == i) {
-						final int xM = m.getX();
-						final int yM = m.getY();
-						final int zM = m.getZ();
-						final double value = ip.getPixelValue(xM, yM);
-						
-						int[] realPosArray = img.convertIndexToPosition(zM); // from the slice we get the array  [channel, slice, frame]
-						final int channel 	= realPosArray[0];
-						final int zPos		= realPosArray[1];
-						final int frame 	= realPosArray[2];
-						final double xMcal 	= xM * cal.pixelWidth ;
-						final double yMcal 	= yM * cal.pixelHeight;
-						final double zMcal 	= (zPos-1) * cal.pixelDepth; 		// zPos instead of zM , start at 1 while should start at 0.  
-						
-						String resultsRow = String.format("%d\t%d\t%d\t%d\t%f\t%d\t%d\t%d\t%.3f\t%.3f\t%.3f",typeID,zM,xM,yM,value,channel,zPos,frame,xMcal,yMcal,zMcal);
-						IJ.write(resultsRow);
-						//IJ.write(typeID + "\t" + zM + "\t" + xM + "\t" + yM + "\t" + value + "\t" + channel + "\t" + zPos + "\t" + frame + "\t" + xMcal + "\t" + yMcal + "\t" +zMcal);
-						
-					}
-				}
-			}
-		}
+		cc.getModel().measure(0, false, false).show("Results");
 	}
 
 	public Vector<CellCntrMarkerVector> getTypeVector() {
@@ -272,6 +320,43 @@ public class CellCntrImageCanvas extends ImageCanvas {
 
 	public void setTypeVector(final Vector<CellCntrMarkerVector> typeVector) {
 		this.typeVector = typeVector;
+		if (overlay != null) overlay.rebuild();
+	}
+
+	/**
+	 * Switches between drawing the markers on the canvas and keeping them in
+	 * the image overlay, where they are saved with the image.
+	 *
+	 * @see CellCntrOverlay
+	 */
+	public void setOverlayMode(final boolean overlayMode) {
+		if (overlayMode == (overlay != null)) return;
+		if (overlayMode) {
+			overlay = new CellCntrOverlay(img, cc.getModel());
+			overlay.setShowAll(showAll);
+		}
+		else {
+			overlay.remove();
+			overlay = null;
+		}
+		repaint();
+	}
+
+	public boolean isOverlayMode() {
+		return overlay != null;
+	}
+
+	/** Returns whether a selection is one of the markers of overlay mode. */
+	public boolean isMarkerRoi(final Roi roi) {
+		return overlay != null && overlay.contains(roi);
+	}
+
+	/**
+	 * Brings the overlay up to date after many markers changed at once; the
+	 * canvas itself only needs a repaint.
+	 */
+	public void markersChanged() {
+		if (overlay != null) overlay.rebuild();
 	}
 
 	public CellCntrMarkerVector getCurrentMarkerVector() {
@@ -302,6 +387,7 @@ public class CellCntrImageCanvas extends ImageCanvas {
 
 	public void setShowAll(final boolean showAll) {
 		this.showAll = showAll;
+		if (overlay != null) overlay.setShowAll(showAll);
 	}
 
 }
@@ -0,0 +1,514 @@
+/*
+ * #%L
+ * Cell Counter plugin for ImageJ.
+ * %%
+ * Copyright (C) 2007 - 2015 Kurt De Vos and Board of Regents of the
+ * University of Wisconsin-Madison.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import ij.IJ;
+import ij.Prefs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Vector;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only journal of the changes made to the markers of one image, kept
+ * so that a session can be recovered after a crash. Changes are recorded in
+ * memory and written to disk in batches by a background thread. Every so
+ * often the journal is compacted: the complete marker state is written as a
+ * binary snapshot (see {@link WriteBinaryMarkers}) and the journal starts
+ * over. The journal header names the generation of the snapshot it continues
+ * from, so a crash halfway through a compaction loses nothing. If a snapshot
+ * cannot be written, the old journal stays in use and the compaction is
+ * retried.
+ * <p>
+ * The files are kept in the ImageJ preferences directory, so they outlive a
+ * reboot, and are named after both the title and the path of the image.
+ * </p>
+ * <p>
+ * Every record is five big-endian ints: operation, type index and three
+ * arguments.
+ * </p>
+ */
+public class CellCntrJournal {
+
+	/** Adds marker (x, y, z) to a type. */
+	private static final int ADD = 1;
+	/** Removes the marker with index x from a type. */
+	private static final int REMOVE = 2;
+	/** Removes all markers of all types. */
+	private static final int RESET = 3;
+	/** Appends a new type with type number x. */
+	private static final int ADD_TYPE = 4;
+	/** Removes the last type. */
+	private static final int REMOVE_TYPE = 5;
+
+	/** "CCJL" */
+	private static final int MAGIC = 0x43434a4c;
+	private static final int HEADER_SIZE = 12;
+	private static final int RECORD_INTS = 5;
+	private static final int RECORD_SIZE = 4 * RECORD_INTS;
+
+	private static final long FLUSH_INTERVAL = 1000; // ms
+	private static final int COMPACT_THRESHOLD = 1 << 20; // records
+	/** Wait before retrying a failed compaction, doubled on each failure. */
+	private static final long RETRY_INTERVAL = 60 * 1000; // ms
+	private static final long MAX_RETRY_INTERVAL = 60 * 60 * 1000; // ms
+
+	private final String title;
+	private final String name;
+	private final ScheduledExecutorService writer;
+
+	// guarded by this
+	private int[] pending = new int[RECORD_INTS * 1024];
+	private int pendingCount;
+	private int generation;
+	private int records;
+	private boolean compactionFailed;
+	private long retryInterval = RETRY_INTERVAL;
+	private long retryTime;
+
+	// only touched by the writer thread
+	private FileChannel channel;
+	private int fileGeneration;
+
+	/**
+	 * Starts a journal for the image with the given title and file path
+	 * (which may be null for unsaved images), whose markers are currently
+	 * {@code typeVector}. Any earlier journal for that image is replaced.
+	 */
+	public CellCntrJournal(final String title, final String path,
+		final Vector<CellCntrMarkerVector> typeVector, final int currentType)
+	{
+		this.title = title;
+		this.name = fileName(title, path);
+		writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread t = new Thread(r, "Cell Counter journal");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		writer.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				deleteFiles(-1);
+			}
+		});
+		compact(typeVector, currentType);
+		writer.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				flush();
+			}
+		}, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	// -- Recording --
+
+	public void markerAdded(final int typeIndex, final int x, final int y,
+		final int z)
+	{
+		record(ADD, typeIndex, x, y, z);
+	}
+
+	public void markerRemoved(final int typeIndex, final int n) {
+		record(REMOVE, typeIndex, n, 0, 0);
+	}
+
+	public void reset() {
+		record(RESET, 0, 0, 0, 0);
+	}
+
+	public void typeAdded(final int type) {
+		record(ADD_TYPE, 0, type, 0, 0);
+	}
+
+	public void typeRemoved() {
+		record(REMOVE_TYPE, 0, 0, 0, 0);
+	}
+
+	/**
+	 * Returns true once enough records have piled up that the caller should
+	 * {@link #compact} the journal. After a failed compaction this also
+	 * becomes true when the wait before the next attempt is over; the wait
+	 * grows with every failure, so a lasting problem such as a full disk
+	 * does not cost a snapshot of all markers on every change.
+	 */
+	public synchronized boolean needsCompaction() {
+		return records >= COMPACT_THRESHOLD ||
+			(compactionFailed && System.currentTimeMillis() >= retryTime);
+	}
+
+	/**
+	 * Replaces the journal by a snapshot of the given markers. The snapshot
+	 * is taken right away; writing it happens in the background.
+	 */
+	public void compact(final Vector<CellCntrMarkerVector> typeVector,
+		final int currentType)
+	{
+		final Vector<CellCntrMarkerVector> snapshot =
+			new Vector<CellCntrMarkerVector>(typeVector.size());
+		for (final CellCntrMarkerVector markerVector : typeVector) {
+			snapshot.add(markerVector.copy());
+		}
+		final int newGeneration;
+		final int[] batch;
+		final int count;
+		synchronized (this) {
+			// the snapshot already contains everything recorded so far, but the
+			// old journal needs it too in case the snapshot cannot be written
+			batch = pending;
+			count = pendingCount;
+			pending = new int[batch.length];
+			pendingCount = 0;
+			records = 0;
+			// no retry while this attempt is under way
+			retryTime = System.currentTimeMillis() + retryInterval;
+			newGeneration = ++generation;
+		}
+		writer.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				write(batch, count);
+				writeSnapshot(snapshot, currentType, newGeneration);
+			}
+		});
+	}
+
+	/**
+	 * Stops the journal after writing what is still pending. If
+	 * {@code discard} is set its files are deleted as well, because the
+	 * session ended normally.
+	 */
+	public void close(final boolean discard) {
+		writer.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				flush();
+				closeChannel();
+				if (discard) deleteFiles(-1);
+			}
+		});
+		writer.shutdown();
+	}
+
+	// -- Recovery --
+
+	/** Returns true if a journal was left behind for the given image. */
+	public static boolean exists(final String title, final String path) {
+		return journalFile(fileName(title, path)).exists();
+	}
+
+	/**
+	 * Rebuilds the markers of an earlier session of the given image from its
+	 * snapshot and journal, or returns null if they cannot be read.
+	 */
+	public static Vector<CellCntrMarkerVector> recover(final String title,
+		final String path)
+	{
+		final String name = fileName(title, path);
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(journalFile(name), "r");
+			final FileChannel in = raf.getChannel();
+			final ByteBuffer buffer =
+				ByteBuffer.allocate((int) Math.min(in.size(), Integer.MAX_VALUE));
+			while (buffer.hasRemaining() && in.read(buffer) >= 0) {
+				// keep reading
+			}
+			buffer.flip();
+			if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+				return null;
+			}
+			buffer.getInt(); // version
+			final int snapshotGeneration = buffer.getInt();
+			final File snapshot = snapshotFile(name, snapshotGeneration);
+			if (!snapshot.exists()) return null;
+			final Vector<CellCntrMarkerVector> typeVector =
+				new ReadBinaryMarkers(snapshot.getPath()).readMarkerData();
+			if (typeVector == null) return null; // damaged snapshot
+
+			// a torn record at the end is ignored
+			while (buffer.remaining() >= RECORD_SIZE) {
+				replay(typeVector, buffer.getInt(), buffer.getInt(), buffer.getInt(),
+					buffer.getInt(), buffer.getInt());
+			}
+			return typeVector;
+		}
+		catch (final IOException e) {
+			IJ.log("Could not recover markers of " + title + ": " + e.getMessage());
+			return null;
+		}
+		catch (final RuntimeException e) {
+			IJ.log("Could not recover markers of " + title + ": " + e);
+			return null;
+		}
+		finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				}
+				catch (final IOException e) {
+					IJ.log(e.getMessage());
+				}
+			}
+		}
+	}
+
+	// -- Helper methods --
+
+	private synchronized void record(final int op, final int typeIndex,
+		final int a, final int b, final int c)
+	{
+		if (pendingCount + RECORD_INTS > pending.length) {
+			pending = Arrays.copyOf(pending, pending.length * 2);
+		}
+		pending[pendingCount++] = op;
+		pending[pendingCount++] = typeIndex;
+		pending[pendingCount++] = a;
+		pending[pendingCount++] = b;
+		pending[pendingCount++] = c;
+		records++;
+	}
+
+	private static void replay(final Vector<CellCntrMarkerVector> typeVector,
+		final int op, final int typeIndex, final int a, final int b, final int c)
+	{
+		switch (op) {
+			case ADD:
+				typeVector.get(typeIndex).addMarker(a, b, c);
+				break;
+			case REMOVE:
+				typeVector.get(typeIndex).removeMarker(a);
+				break;
+			case RESET:
+				for (final CellCntrMarkerVector markerVector : typeVector) {
+					markerVector.clear();
+				}
+				break;
+			case ADD_TYPE:
+				typeVector.add(new CellCntrMarkerVector(a));
+				break;
+			case REMOVE_TYPE:
+				typeVector.remove(typeVector.size() - 1);
+				break;
+		}
+	}
+
+	/** Writes the pending records to the journal; runs on the writer thread. */
+	private void flush() {
+		final int[] batch;
+		final int count;
+		synchronized (this) {
+			// records made after a compaction wait for its new journal
+			if (pendingCount == 0 || generation != fileGeneration ||
+				channel == null) return;
+			batch = pending;
+			count = pendingCount;
+			pending = new int[batch.length];
+			pendingCount = 0;
+		}
+		write(batch, count);
+	}
+
+	/** Appends records to the journal in use; runs on the writer thread. */
+	private void write(final int[] batch, final int count) {
+		if (count == 0 || channel == null) return;
+		try {
+			final ByteBuffer buffer = ByteBuffer.allocate(4 * count);
+			buffer.asIntBuffer().put(batch, 0, count);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(false);
+		}
+		catch (final IOException e) {
+			IJ.log("Could not write the Cell Counter journal: " + e.getMessage());
+		}
+	}
+
+	/** Runs on the writer thread. */
+	private void writeSnapshot(final Vector<CellCntrMarkerVector> snapshot,
+		final int currentType, final int newGeneration)
+	{
+		final File dir = journalDirectory();
+		final File snapshotFile = snapshotFile(name, newGeneration);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			snapshotFailed(newGeneration, "cannot create " + dir);
+			return;
+		}
+		if (!new WriteBinaryMarkers(snapshotFile.getPath()).write(title, snapshot,
+			currentType))
+		{
+			snapshotFile.delete();
+			snapshotFailed(newGeneration, "cannot write " + snapshotFile);
+			return;
+		}
+
+		final File journal = journalFile(name);
+		File tmp = null;
+		RandomAccessFile raf = null;
+		try {
+			// switch to the new snapshot by replacing the journal in one step
+			tmp = File.createTempFile(journal.getName(), ".tmp", dir);
+			raf = new RandomAccessFile(tmp, "rw");
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(1).putInt(newGeneration).flip();
+			raf.getChannel().write(header);
+			raf.getChannel().force(true);
+			raf.close();
+			raf = null;
+			closeChannel();
+			try {
+				WriteXML.replace(tmp, journal);
+			}
+			catch (final IOException e) {
+				// carry on with the old journal
+				if (fileGeneration > 0) openChannel(journal);
+				throw e;
+			}
+			deleteFiles(newGeneration);
+			fileGeneration = newGeneration;
+			openChannel(journal);
+			synchronized (this) {
+				compactionFailed = false;
+				retryInterval = RETRY_INTERVAL;
+			}
+		}
+		catch (final IOException e) {
+			if (tmp != null) tmp.delete();
+			snapshotFile.delete();
+			snapshotFailed(newGeneration, e.getMessage());
+			return;
+		}
+		finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				}
+				catch (final IOException e) {
+					IJ.log(e.getMessage());
+				}
+			}
+		}
+		flush();
+	}
+
+	/**
+	 * Keeps the old journal in use after a failed compaction and schedules
+	 * another attempt, waiting twice as long as after the previous failure.
+	 */
+	private void snapshotFailed(final int newGeneration, final String reason)
+	{
+		IJ.log("Could not compact the Cell Counter journal: " + reason);
+		synchronized (this) {
+			// unless another compaction is already queued, records go on being
+			// appended to the old journal
+			if (generation == newGeneration) generation = fileGeneration;
+			if (compactionFailed) {
+				retryInterval = Math.min(2 * retryInterval, MAX_RETRY_INTERVAL);
+			}
+			compactionFailed = true;
+			retryTime = System.currentTimeMillis() + retryInterval;
+		}
+		flush();
+	}
+
+	private void openChannel(final File journal) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+		channel = raf.getChannel();
+		channel.position(channel.size());
+	}
+
+	/**
+	 * Deletes the snapshots of this image other than the given generation;
+	 * with -1 the journal itself is deleted as well.
+	 */
+	private void deleteFiles(final int keepGeneration) {
+		if (keepGeneration < 0) journalFile(name).delete();
+		final String prefix = name + ".";
+		final File[] files = journalDirectory().listFiles();
+		if (files == null) return;
+		for (final File file : files) {
+			final String fileName = file.getName();
+			if (!fileName.startsWith(prefix) ||
+				!fileName.endsWith(WriteBinaryMarkers.EXTENSION)) continue;
+			final String number =
+				fileName.substring(prefix.length(), fileName.length() -
+					WriteBinaryMarkers.EXTENSION.length());
+			if (!number.matches("[0-9]+")) continue;
+			if (Integer.parseInt(number) != keepGeneration) file.delete();
+		}
+	}
+
+	private void closeChannel() {
+		if (channel == null) return;
+		try {
+			channel.close();
+		}
+		catch (final IOException e) {
+			IJ.log(e.getMessage());
+		}
+		channel = null;
+	}
+
+	private static File journalDirectory() {
+		final String prefs = Prefs.getPrefsDir();
+		final String parent =
+			prefs != null ? prefs : System.getProperty("user.home");
+		return new File(parent, "CellCounter");
+	}
+
+	private static File journalFile(final String name) {
+		return new File(journalDirectory(), name + ".journal");
+	}
+
+	private static File snapshotFile(final String name, final int generation) {
+		return new File(journalDirectory(), name + "." + generation +
+			WriteBinaryMarkers.EXTENSION);
+	}
+
+	/**
+	 * Names the files of an image after its title, made safe for file names,
+	 * and a hash of its path, so images of the same title in different
+	 * places do not share a journal.
+	 */
+	private static String fileName(final String title, final String path) {
+		final String safe = title.replaceAll("[^A-Za-z0-9._-]", "_");
+		final String key = path != null ? path : title;
+		return safe + "-" + Integer.toHexString(key.hashCode());
+	}
+
+}
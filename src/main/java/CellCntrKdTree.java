@@ -0,0 +1,218 @@
+/*
+ * #%L
+ * Cell Counter plugin for ImageJ.
+ * %%
+ * Copyright (C) 2007 - 2015 Kurt De Vos and Board of Regents of the
+ * University of Wisconsin-Madison.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+/**
+ * Static k-d tree over 2D or 3D points, for nearest-neighbour and radius
+ * queries in O(log n) on average. The tree is laid out implicitly in arrays:
+ * the node of a range of points is its median, splitting the range on the
+ * axes in turn. Queries keep their state on the stack, so one tree can be
+ * queried from several threads at once.
+ */
+public class CellCntrKdTree {
+
+	private final int dims;
+	private final double[] xs;
+	private final double[] ys;
+	private final double[] zs;
+	private final int[] ids;
+	private final int size;
+
+	/**
+	 * Builds the tree over the first {@code count} points. The coordinate
+	 * arrays are reordered in place; {@code zs} is null for 2D points. Each
+	 * point carries the id of the same position in {@code ids}.
+	 */
+	public CellCntrKdTree(final double[] xs, final double[] ys,
+		final double[] zs, final int[] ids, final int count)
+	{
+		if (count > xs.length || count > ys.length || count > ids.length ||
+			zs != null && count > zs.length)
+		{
+			throw new IllegalArgumentException("Fewer coordinates than points");
+		}
+		this.dims = zs == null ? 2 : 3;
+		this.xs = xs;
+		this.ys = ys;
+		this.zs = zs;
+		this.ids = ids;
+		this.size = count;
+		build(0, count, 0);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the position, in the reordered arrays, of the point closest to
+	 * ({@code x}, {@code y}, {@code z}) other than the one with id
+	 * {@code excludeId}, or -1 if there is none. {@code z} is ignored for 2D
+	 * points.
+	 */
+	public int nearest(final double x, final double y, final double z,
+		final int excludeId)
+	{
+		final double[] best = { Double.POSITIVE_INFINITY };
+		return nearest(0, size, 0, x, y, z, excludeId, best, -1);
+	}
+
+	/** Returns the id of the point at the given position. */
+	public int getId(final int position) {
+		return ids[position];
+	}
+
+	/** Returns the squared distance from a point to the one at a position. */
+	public double distanceSquared(final int position, final double x,
+		final double y, final double z)
+	{
+		final double dx = xs[position] - x;
+		final double dy = ys[position] - y;
+		final double dz = zs == null ? 0 : zs[position] - z;
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	/**
+	 * Returns the number of points within {@code radius} of ({@code x},
+	 * {@code y}, {@code z}), other than the one with id {@code excludeId}.
+	 */
+	public int countWithin(final double x, final double y, final double z,
+		final double radius, final int excludeId)
+	{
+		return countWithin(0, size, 0, x, y, z, radius * radius, excludeId);
+	}
+
+	// -- Helper methods --
+
+	private void build(final int from, final int to, final int axis) {
+		if (to - from < 2) return;
+		final int median = (from + to) >>> 1;
+		select(from, to - 1, median, axis);
+		final int next = (axis + 1) % dims;
+		build(from, median, next);
+		build(median + 1, to, next);
+	}
+
+	/**
+	 * Partially sorts the range [{@code left}, {@code right}] on an axis so
+	 * that the point at {@code k} is where it would be if sorted, with no
+	 * greater ones before it and no smaller ones after it.
+	 */
+	private void select(int left, int right, final int k, final int axis) {
+		final double[] keys = coordinates(axis);
+		while (right > left) {
+			final double pivot = keys[(left + right) >>> 1];
+			int i = left;
+			int j = right;
+			while (i <= j) {
+				while (keys[i] < pivot) i++;
+				while (keys[j] > pivot) j--;
+				if (i <= j) swap(i++, j--);
+			}
+			if (k <= j) right = j;
+			else if (k >= i) left = i;
+			else return;
+		}
+	}
+
+	private void swap(final int i, final int j) {
+		double t = xs[i];
+		xs[i] = xs[j];
+		xs[j] = t;
+		t = ys[i];
+		ys[i] = ys[j];
+		ys[j] = t;
+		if (zs != null) {
+			t = zs[i];
+			zs[i] = zs[j];
+			zs[j] = t;
+		}
+		final int id = ids[i];
+		ids[i] = ids[j];
+		ids[j] = id;
+	}
+
+	private double[] coordinates(final int axis) {
+		return axis == 0 ? xs : axis == 1 ? ys : zs;
+	}
+
+	private static double coordinate(final int axis, final double x,
+		final double y, final double z)
+	{
+		return axis == 0 ? x : axis == 1 ? y : z;
+	}
+
+	private int nearest(final int from, final int to, final int axis,
+		final double x, final double y, final double z, final int excludeId,
+		final double[] best, int found)
+	{
+		if (from >= to) return found;
+		final int median = (from + to) >>> 1;
+		if (ids[median] != excludeId) {
+			final double d = distanceSquared(median, x, y, z);
+			if (d < best[0]) {
+				best[0] = d;
+				found = median;
+			}
+		}
+		final double delta =
+			coordinate(axis, x, y, z) - coordinates(axis)[median];
+		final int next = (axis + 1) % dims;
+		// search the side of the query point first, the other only if the
+		// splitting plane is closer than the best point so far
+		final int nearFrom = delta < 0 ? from : median + 1;
+		final int nearTo = delta < 0 ? median : to;
+		found =
+			nearest(nearFrom, nearTo, next, x, y, z, excludeId, best, found);
+		if (delta * delta < best[0]) {
+			final int farFrom = delta < 0 ? median + 1 : from;
+			final int farTo = delta < 0 ? to : median;
+			found =
+				nearest(farFrom, farTo, next, x, y, z, excludeId, best, found);
+		}
+		return found;
+	}
+
+	private int countWithin(final int from, final int to, final int axis,
+		final double x, final double y, final double z, final double radius2,
+		final int excludeId)
+	{
+		if (from >= to) return 0;
+		final int median = (from + to) >>> 1;
+		int count = 0;
+		if (ids[median] != excludeId &&
+			distanceSquared(median, x, y, z) <= radius2) count++;
+		final double delta =
+			coordinate(axis, x, y, z) - coordinates(axis)[median];
+		final int next = (axis + 1) % dims;
+		if (delta <= 0 || delta * delta <= radius2) {
+			count +=
+				countWithin(from, median, next, x, y, z, radius2, excludeId);
+		}
+		if (delta >= 0 || delta * delta <= radius2) {
+			count +=
+				countWithin(median + 1, to, next, x, y, z, radius2, excludeId);
+		}
+		return count;
+	}
+
+}
@@ -0,0 +1,165 @@
+/*
+ * #%L
+ * Cell Counter plugin for ImageJ.
+ * %%
+ * Copyright (C) 2007 - 2015 Kurt De Vos and Board of Regents of the
+ * University of Wisconsin-Madison.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Lazily copied view of the slices of another stack, used as the stack of
+ * the counter window when the original image is kept. A slice is copied the
+ * first time the counter window asks for it and the copy is kept from then
+ * on, so filters, drawing and other edits in place never reach the
+ * original, while slices that are never visited cost no memory. The view
+ * holds its own references to the pixel arrays, so it stays valid after the
+ * original image is closed.
+ */
+public class CellCntrLazyStack extends VirtualStack {
+
+	private final int width;
+	private final int height;
+	private Object[] shared;
+	private Object[] copies;
+	private String[] labels;
+	private int size;
+
+	public CellCntrLazyStack(final ImageStack source) {
+		super(source.getWidth(), source.getHeight(), source.getColorModel(), null);
+		width = source.getWidth();
+		height = source.getHeight();
+		size = source.getSize();
+		shared = new Object[size];
+		copies = new Object[size];
+		labels = new String[size];
+		for (int i = 0; i < size; i++) {
+			shared[i] = source.getPixels(i + 1);
+			labels[i] = source.getSliceLabel(i + 1);
+		}
+	}
+
+	@Override
+	public int getSize() {
+		return size;
+	}
+
+	@Override
+	public String getSliceLabel(final int n) {
+		checkSlice(n);
+		return labels[n - 1];
+	}
+
+	@Override
+	public void setSliceLabel(final String label, final int n) {
+		checkSlice(n);
+		labels[n - 1] = label;
+	}
+
+	/** Returns a processor on the copy of slice {@code n}. */
+	@Override
+	public ImageProcessor getProcessor(final int n) {
+		return createProcessor(getPixels(n));
+	}
+
+	/**
+	 * Returns the pixels of slice {@code n}, copying them from the original
+	 * the first time. This may be called from several threads.
+	 */
+	@Override
+	public synchronized Object getPixels(final int n) {
+		checkSlice(n);
+		if (copies[n - 1] == null) copies[n - 1] = copy(shared[n - 1]);
+		return copies[n - 1];
+	}
+
+	@Override
+	public synchronized void setPixels(final Object pixels, final int n) {
+		checkSlice(n);
+		copies[n - 1] = pixels == shared[n - 1] ? copy(pixels) : pixels;
+	}
+
+	@Override
+	public synchronized void deleteSlice(final int n) {
+		checkSlice(n);
+		System.arraycopy(shared, n, shared, n - 1, size - n);
+		System.arraycopy(copies, n, copies, n - 1, size - n);
+		System.arraycopy(labels, n, labels, n - 1, size - n);
+		size--;
+		shared[size] = null;
+		copies[size] = null;
+		labels[size] = null;
+	}
+
+	@Override
+	public void deleteLastSlice() {
+		if (size > 0) deleteSlice(size);
+	}
+
+	@Override
+	public int getBitDepth() {
+		final Object pixels = size > 0 ? shared[0] : null;
+		if (pixels instanceof short[]) return 16;
+		if (pixels instanceof float[]) return 32;
+		if (pixels instanceof int[]) return 24;
+		return 8;
+	}
+
+	// -- Helper methods --
+
+	private void checkSlice(final int n) {
+		if (n < 1 || n > size) {
+			throw new IllegalArgumentException("Argument out of range: " + n);
+		}
+	}
+
+	private ImageProcessor createProcessor(final Object pixels) {
+		if (pixels instanceof byte[]) {
+			return new ByteProcessor(width, height, (byte[]) pixels,
+				getColorModel());
+		}
+		if (pixels instanceof short[]) {
+			return new ShortProcessor(width, height, (short[]) pixels,
+				getColorModel());
+		}
+		if (pixels instanceof float[]) {
+			return new FloatProcessor(width, height, (float[]) pixels,
+				getColorModel());
+		}
+		if (pixels instanceof int[]) {
+			return new ColorProcessor(width, height, (int[]) pixels);
+		}
+		throw new IllegalArgumentException("Unknown pixel type");
+	}
+
+	private static Object copy(final Object pixels) {
+		if (pixels instanceof byte[]) return ((byte[]) pixels).clone();
+		if (pixels instanceof short[]) return ((short[]) pixels).clone();
+		if (pixels instanceof float[]) return ((float[]) pixels).clone();
+		if (pixels instanceof int[]) return ((int[]) pixels).clone();
+		throw new IllegalArgumentException("Unknown pixel type");
+	}
+
+}
@@ -0,0 +1,362 @@
+/*
+ * #%L
+ * Cell Counter plugin for ImageJ.
+ * %%
+ * Copyright (C) 2007 - 2015 Kurt De Vos and Board of Regents of the
+ * University of Wisconsin-Madison.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import ij.ImagePlus;
+import ij.gui.Overlay;
+import ij.gui.PointRoi;
+import ij.gui.Roi;
+import ij.plugin.frame.RoiManager;
+import ij.process.FloatPolygon;
+
+import java.awt.Rectangle;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Vector;
+
+/**
+ * Collects points from point selections, the ROI Manager or coordinate
+ * files and adds them to the markers in one go, with one
+ * {@link CellCntrMarkerVector#addMarkers} call per counter type. That way
+ * the marker indexes are rebuilt once and the window is repainted and
+ * recounted once, however many points there are. Points outside the image
+ * the markers belong to are dropped.
+ */
+public class CellCntrMarkerImport {
+
+	/** Type index of points that go to the type chosen when adding them. */
+	public static final int DEFAULT_TYPE = -1;
+
+	private static final int CHECK_LINES = 1 << 16;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private int[] xs = new int[1024];
+	private int[] ys = new int[1024];
+	private int[] zs = new int[1024];
+	private int[] types = new int[1024];
+	private int size;
+	private int skipped;
+
+	private final ImagePlus imp;
+
+	/**
+	 * @param imp the image the points are for; it gives the bounds and the
+	 *          stack layout, and may be null to take all points as they are
+	 */
+	public CellCntrMarkerImport(final ImagePlus imp) {
+		this.imp = imp;
+	}
+
+	/** Returns the number of points collected. */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of points outside the image and of lines of
+	 * coordinate files that were not usable.
+	 */
+	public int getSkippedCount() {
+		return skipped;
+	}
+
+	/**
+	 * Adds a point, unless it lies outside the image.
+	 *
+	 * @return whether the point was added
+	 */
+	public boolean addPoint(final int x, final int y, final int slice,
+		final int typeIndex)
+	{
+		if (imp != null &&
+			(x < 0 || y < 0 || x >= imp.getWidth() || y >= imp.getHeight() ||
+				slice < 1 || slice > imp.getStackSize()))
+		{
+			skipped++;
+			return false;
+		}
+		if (size == xs.length) {
+			final int capacity = size * 2;
+			xs = Arrays.copyOf(xs, capacity);
+			ys = Arrays.copyOf(ys, capacity);
+			zs = Arrays.copyOf(zs, capacity);
+			types = Arrays.copyOf(types, capacity);
+		}
+		xs[size] = x;
+		ys[size] = y;
+		zs[size] = slice;
+		types[size] = typeIndex;
+		size++;
+		return true;
+	}
+
+	/**
+	 * Adds the points of a selection. Point selections give all their points;
+	 * other selections give the centre of their bounds. Points go to their
+	 * own slice if the selection records one per point, else to the
+	 * selection's (hyperstack) position. Missing positions are taken from
+	 * {@code defaultSlice}.
+	 */
+	public void addRoi(final Roi roi, final int defaultSlice) {
+		addRoi(roi, defaultSlice, DEFAULT_TYPE);
+	}
+
+	/** Adds the points of all selections in the ROI Manager. */
+	public void addRoiManager(final RoiManager rm, final int defaultSlice) {
+		final int count = rm.getCount();
+		for (int i = 0; i < count; i++) {
+			final Roi roi = rm.getRoi(i);
+			int slice = roi.getPosition();
+			// older ROI sets encode the slice in the name only
+			if (slice <= 0) slice = rm.getSliceNumber(rm.getName(i));
+			addRoi(roi, slice > 0 ? slice : defaultSlice);
+		}
+	}
+
+	/**
+	 * Adds the points of the point selections in an overlay, such as the
+	 * markers saved with an image in overlay mode. Selections named after a
+	 * counter type go to that type, the others to the chosen type; other
+	 * kinds of selections are left out.
+	 *
+	 * @param typeNames the names of the counter types, by type index
+	 */
+	public void addOverlay(final Overlay overlay, final String[] typeNames,
+		final int defaultSlice)
+	{
+		for (final Roi roi : overlay.toArray()) {
+			if (roi.getType() != Roi.POINT) continue;
+			final int type = Arrays.asList(typeNames).indexOf(roi.getName());
+			addRoi(roi, defaultSlice, type >= 0 ? type : DEFAULT_TYPE);
+		}
+	}
+
+	/**
+	 * Reads points from a table file with one point per line and columns
+	 * separated by commas, tabs, semicolons or spaces. A header line naming
+	 * the columns X, Y, Slice (or Z) and Type picks the columns; without one
+	 * they are taken in that order. Blank lines and lines starting with # are
+	 * ignored. Types are type numbers starting at 1; missing slices are 1 and
+	 * missing types go to the chosen type. Unusable lines are skipped and
+	 * counted.
+	 */
+	public void readCsv(final String path, final CellCntrProgress progress)
+		throws IOException
+	{
+		final FileInputStream in = new FileInputStream(path);
+		final FileChannel channel = in.getChannel();
+		final long length = channel.size();
+		final BufferedReader reader =
+			new BufferedReader(new InputStreamReader(in, UTF8), 1 << 16);
+		try {
+			int xColumn = 0, yColumn = 1, sliceColumn = 2, typeColumn = 3;
+			final String[] columns = new String[16];
+			String line;
+			long lines = 0;
+			boolean first = true;
+			while ((line = reader.readLine()) != null) {
+				if (++lines % CHECK_LINES == 0 && progress != null) {
+					progress.progress(channel.position(), length);
+					if (progress.isCanceled()) {
+						throw new InterruptedIOException("Import canceled");
+					}
+				}
+				if (line.startsWith("#")) continue; // comment
+				final int n = split(line, columns);
+				if (n == 0) continue;
+				final boolean header = first && !isNumber(columns[0]);
+				first = false;
+				if (header) {
+					// header line
+					xColumn = yColumn = sliceColumn = typeColumn = -1;
+					for (int c = 0; c < n; c++) {
+						final String name = columns[c].toLowerCase(Locale.ROOT);
+						if (name.equals("x")) xColumn = c;
+						else if (name.equals("y")) yColumn = c;
+						else if (name.equals("slice") || name.equals("z")) {
+							sliceColumn = c;
+						}
+						else if (name.equals("type")) typeColumn = c;
+					}
+					if (xColumn < 0 || yColumn < 0) {
+						throw new IOException("No X and Y columns in " + path);
+					}
+					continue;
+				}
+				try {
+					final int x = parse(columns, n, xColumn, -1);
+					final int y = parse(columns, n, yColumn, -1);
+					final int slice = parse(columns, n, sliceColumn, 1);
+					final int type = parse(columns, n, typeColumn, 0);
+					if (x < 0 || y < 0) {
+						skipped++;
+						continue;
+					}
+					addPoint(x, y, slice, type > 0 ? type - 1 : DEFAULT_TYPE);
+				}
+				catch (final NumberFormatException e) {
+					skipped++;
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Adds the collected points to the markers. Points without a type, and
+	 * points of types that do not exist, go to the type with index
+	 * {@code defaultType}.
+	 *
+	 * @return the number of markers added
+	 */
+	public int addTo(final Vector<CellCntrMarkerVector> typeVector,
+		final int defaultType)
+	{
+		final int typeCount = typeVector.size();
+		final int[] counts = new int[typeCount];
+		for (int i = 0; i < size; i++) {
+			if (types[i] < 0 || types[i] >= typeCount) types[i] = defaultType;
+			counts[types[i]]++;
+		}
+		for (int t = 0; t < typeCount; t++) {
+			if (counts[t] == 0) continue;
+			final int[] x = new int[counts[t]];
+			final int[] y = new int[counts[t]];
+			final int[] z = new int[counts[t]];
+			int k = 0;
+			for (int i = 0; i < size; i++) {
+				if (types[i] != t) continue;
+				x[k] = xs[i];
+				y[k] = ys[i];
+				z[k] = zs[i];
+				k++;
+			}
+			typeVector.get(t).addMarkers(x, y, z, k);
+		}
+		return size;
+	}
+
+	// -- Helper methods --
+
+	/** Adds the points of a selection as points of the given type. */
+	private void addRoi(final Roi roi, final int defaultSlice,
+		final int typeIndex)
+	{
+		final int slice = getSlice(roi, defaultSlice);
+		if (roi.getType() == Roi.POINT) {
+			final FloatPolygon p = roi.getFloatPolygon();
+			final PointRoi pointRoi =
+				roi instanceof PointRoi ? (PointRoi) roi : null;
+			for (int i = 0; i < p.npoints; i++) {
+				final int position =
+					pointRoi != null ? pointRoi.getPointPosition(i) : 0;
+				addPoint((int) p.xpoints[i], (int) p.ypoints[i],
+					position > 0 ? position : slice, typeIndex);
+			}
+			return;
+		}
+		final Rectangle r = roi.getBounds();
+		addPoint(r.x + r.width / 2, r.y + r.height / 2, slice, typeIndex);
+	}
+
+	/**
+	 * Returns the stack index of a selection, filling in the channel, slice
+	 * and frame it does not give from {@code defaultSlice}.
+	 */
+	private int getSlice(final Roi roi, final int defaultSlice) {
+		if (imp != null && imp.isHyperStack()) {
+			final int c = roi.getCPosition();
+			final int z = roi.getZPosition();
+			final int t = roi.getTPosition();
+			if (c > 0 || z > 0 || t > 0) {
+				// [channel, slice, frame]
+				final int[] current = imp.convertIndexToPosition(defaultSlice);
+				return imp.getStackIndex(c > 0 ? c : current[0], z > 0 ? z
+					: current[1], t > 0 ? t : current[2]);
+			}
+		}
+		final int position = roi.getPosition();
+		return position > 0 ? position : defaultSlice;
+	}
+
+	/**
+	 * Splits a line into at most {@code columns.length} fields at tabs, or
+	 * else at commas, or else at semicolons, or else at runs of spaces.
+	 * Fields are trimmed and unquoted; empty fields are kept as such.
+	 */
+	private static int split(final String line, final String[] columns) {
+		final char separator;
+		if (line.indexOf('\t') >= 0) separator = '\t';
+		else if (line.indexOf(',') >= 0) separator = ',';
+		else if (line.indexOf(';') >= 0) separator = ';';
+		else separator = ' ';
+		final String text = separator == ' ' ? line.trim() : line;
+		if (text.isEmpty()) return 0;
+		int n = 0;
+		int start = 0;
+		while (n < columns.length) {
+			int end = text.indexOf(separator, start);
+			if (end < 0) end = text.length();
+			String field = text.substring(start, end).trim();
+			if (field.length() >= 2 && field.charAt(0) == '"' &&
+				field.charAt(field.length() - 1) == '"')
+			{
+				field = field.substring(1, field.length() - 1);
+			}
+			columns[n++] = field;
+			if (end == text.length()) break;
+			start = end + 1;
+			if (separator == ' ') {
+				while (start < text.length() && text.charAt(start) == ' ') {
+					start++;
+				}
+			}
+		}
+		return n;
+	}
+
+	private static boolean isNumber(final String s) {
+		if (s.isEmpty()) return false;
+		final char c = s.charAt(0);
+		return (c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.';
+	}
+
+	/** Parses a column as a pixel position, rounding down fractions. */
+	private static int parse(final String[] columns, final int n,
+		final int column, final int missing)
+	{
+		if (column < 0 || column >= n || columns[column].isEmpty()) {
+			return missing;
+		}
+		return (int) Math.floor(Double.parseDouble(columns[column]));
+	}
+
+}
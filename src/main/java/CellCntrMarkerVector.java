@@ -23,76 +23,288 @@
 
 // Created on December 13, 2005, 8:40 AM
 
-import ij.IJ;
-
 import java.awt.Color;
 import java.awt.Point;
-import java.util.ListIterator;
-import java.util.Vector;
-
-import org.scijava.Context;
-import org.scijava.options.OptionsService;
+import java.awt.Rectangle;
+import java.util.Arrays;
 
 /**
- * TODO
+ * The markers of one counter type. Coordinates are kept in parallel primitive
+ * columns rather than as one {@link CellCntrMarker} object per marker, so that
+ * large sessions stay compact and can be iterated by index with
+ * {@link #getX(int)}, {@link #getY(int)} and {@link #getZ(int)}.
+ * <p>
+ * Markers are numbered 0 to {@code size() - 1} in the order they were
+ * placed. Removing one leaves a hole in the columns instead of moving the
+ * markers after it, so the slice and grid indexes, which refer to column
+ * slots, stay valid. While there are holes a Fenwick tree counts the markers
+ * before each slot to translate between numbers and slots, and once the
+ * holes outnumber the markers the columns are compacted and the indexes
+ * rebuilt. A removal thus costs O(log n) plus the work in its slice and grid
+ * cell, and compaction O(1) per removal on average.
+ * </p>
  *
  * @author Kurt De Vos
  */
-public class CellCntrMarkerVector extends Vector<CellCntrMarker> {
+public class CellCntrMarkerVector {
+
+	private static final int INITIAL_CAPACITY = 16;
 
 	private int type;
+	private int[] xs;
+	private int[] ys;
+	private int[] zs;
+	/** Number of column slots in use, removed markers included. */
+	private int used;
+	/** Number of removed markers below {@link #used}. */
+	private int holes;
+	/** While there are holes: which slots hold removed markers. */
+	private boolean[] removed;
+	/** While there are holes: Fenwick tree of the markers per slot. */
+	private int[] tree;
+	private final CellCntrGridIndex gridIndex = new CellCntrGridIndex();
+	private final CellCntrSliceIndex sliceIndex = new CellCntrSliceIndex();
+
+	/**
+	 * Whether the indexes are up to date. Bulk additions leave them stale and
+	 * they are rebuilt on the next query.
+	 */
+	private volatile boolean indexed = true;
 
 	/** Creates a new instance of MarkerVector */
 	public CellCntrMarkerVector(final int type) {
-		super();
 		this.type = type;
+		xs = new int[INITIAL_CAPACITY];
+		ys = new int[INITIAL_CAPACITY];
+		zs = new int[INITIAL_CAPACITY];
 	}
 
 	public void addMarker(final CellCntrMarker marker) {
-		add(marker);
+		addMarker(marker.getX(), marker.getY(), marker.getZ());
+	}
+
+	public void addMarker(final int x, final int y, final int z) {
+		ensureCapacity(used + 1);
+		xs[used] = x;
+		ys[used] = y;
+		zs[used] = z;
+		if (indexed) {
+			gridIndex.add(x, y, z, used);
+			sliceIndex.add(z, used);
+		}
+		if (tree != null) update(used, 1);
+		used++;
+	}
+
+	/**
+	 * Appends the first {@code count} markers of the given coordinate arrays
+	 * in one go. The indexes are brought up to date lazily, by the next query
+	 * or by {@link #ensureIndexed()}.
+	 */
+	public void addMarkers(final int[] x, final int[] y, final int[] z,
+		final int count)
+	{
+		compact(); // the indexes are rebuilt anyway
+		ensureCapacity(used + count);
+		System.arraycopy(x, 0, xs, used, count);
+		System.arraycopy(y, 0, ys, used, count);
+		System.arraycopy(z, 0, zs, used, count);
+		used += count;
+		indexed = false;
+	}
+
+	/**
+	 * Returns an independent copy of this vector, e.g. to save it while
+	 * counting goes on. Its indexes are only built if it is queried.
+	 */
+	public CellCntrMarkerVector copy() {
+		final CellCntrMarkerVector copy = new CellCntrMarkerVector(type);
+		final int size = size();
+		copy.xs = new int[Math.max(size, INITIAL_CAPACITY)];
+		copy.ys = new int[copy.xs.length];
+		copy.zs = new int[copy.xs.length];
+		int n = 0;
+		for (int slot = 0; slot < used; slot++) {
+			if (holes > 0 && removed[slot]) continue;
+			copy.xs[n] = xs[slot];
+			copy.ys[n] = ys[slot];
+			copy.zs[n] = zs[slot];
+			n++;
+		}
+		copy.used = size;
+		copy.indexed = false;
+		return copy;
+	}
+
+	/**
+	 * Builds the slice and grid indexes now if they are stale, so that it
+	 * does not happen later on the Event Dispatch Thread.
+	 */
+	public void ensureIndexed() {
+		if (!indexed) buildIndexes();
 	}
 
 	public CellCntrMarker getMarker(final int n) {
-		return get(n);
+		final int slot = slot(n);
+		return new CellCntrMarker(xs[slot], ys[slot], zs[slot]);
+	}
+
+	public int getX(final int n) {
+		return xs[slot(n)];
+	}
+
+	public int getY(final int n) {
+		return ys[slot(n)];
+	}
+
+	public int getZ(final int n) {
+		return zs[slot(n)];
+	}
+
+	/**
+	 * Returns the x column itself, for bulk reading of the first
+	 * {@link #size()} entries. It must not be modified. The columns are
+	 * compacted first if markers have been removed.
+	 */
+	public int[] getXColumn() {
+		compact();
+		return xs;
+	}
+
+	/** Returns the y column; see {@link #getXColumn()}. */
+	public int[] getYColumn() {
+		compact();
+		return ys;
+	}
+
+	/** Returns the z column; see {@link #getXColumn()}. */
+	public int[] getZColumn() {
+		compact();
+		return zs;
+	}
+
+	/** Returns the number of markers on the given slice. */
+	public int getSliceCount(final int slice) {
+		ensureIndexed();
+		return sliceIndex.size(slice);
+	}
+
+	/**
+	 * Returns the index of the {@code k}-th marker on the given slice, counting
+	 * in the order the markers were added.
+	 */
+	public int getSliceMarker(final int slice, final int k) {
+		ensureIndexed();
+		return number(sliceIndex.get(slice, k));
 	}
 
+	/**
+	 * Returns the index of the first marker with the same coordinates as the
+	 * given one, or -1 if there is none.
+	 */
 	public int getVectorIndex(final CellCntrMarker marker) {
-		return indexOf(marker);
+		int n = 0;
+		for (int slot = 0; slot < used; slot++) {
+			if (holes > 0 && removed[slot]) continue;
+			if (xs[slot] == marker.getX() && ys[slot] == marker.getY() &&
+				zs[slot] == marker.getZ()) return n;
+			n++;
+		}
+		return -1;
 	}
 
+	/**
+	 * Removes marker {@code n}; the markers after it move down by one. Its
+	 * column slot is left empty, so no other index entry changes.
+	 */
 	public void removeMarker(final int n) {
-		remove(n);
+		final int slot = slot(n);
+		ensureIndexed();
+		gridIndex.remove(xs[slot], ys[slot], zs[slot], slot);
+		sliceIndex.remove(zs[slot], slot);
+		if (slot == used - 1) {
+			used--;
+			// slots before it that are empty as well are not needed either
+			while (holes > 0 && removed[used - 1]) {
+				removed[--used] = false;
+				holes--;
+			}
+			if (tree != null) update(slot, -1);
+		}
+		else {
+			if (tree == null) {
+				removed = new boolean[xs.length];
+				buildTree();
+			}
+			removed[slot] = true;
+			holes++;
+			update(slot, -1);
+		}
+		if (holes == 0) {
+			removed = null;
+			tree = null;
+		}
+		else if (holes > size()) compact();
 	}
 
 	public void removeLastMarker() {
-		super.removeElementAt(size() - 1);
+		removeMarker(size() - 1);
 	}
 
-	public CellCntrMarker getMarkerFromPosition(final Point p,
-		final int sliceIndex)
+	public int size() {
+		return used - holes;
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	public void clear() {
+		used = 0;
+		holes = 0;
+		removed = null;
+		tree = null;
+		gridIndex.clear();
+		sliceIndex.clear();
+		indexed = true;
+	}
+
+	/**
+	 * Returns the index of the marker on the given slice closest to
+	 * {@code p}, or -1 if the slice has no markers.
+	 */
+	public int getMarkerIndexFromPosition(final Point p, final int sliceIndex) {
+		ensureIndexed();
+		final int slot = gridIndex.nearest(p.x, p.y, sliceIndex, xs, ys);
+		return slot < 0 ? -1 : number(slot);
+	}
+
+	/**
+	 * Stores in {@code result} the indices of the markers on the given slice
+	 * that lie inside {@code r}, and returns how many there are. When there
+	 * are more than {@code result} can hold only the first
+	 * {@code result.length} are stored.
+	 */
+	public int getMarkersInRect(final int slice, final Rectangle r,
+		final int[] result)
 	{
-		final Vector<CellCntrMarker> v = new Vector<CellCntrMarker>();
-		final ListIterator<CellCntrMarker> it = this.listIterator();
-		while (it.hasNext()) {
-			final CellCntrMarker m = it.next();
-			if (m.getZ() == sliceIndex) {
-				v.add(m);
-			}
-		}
-		CellCntrMarker currentsmallest = v.get(0);
-		for (int i = 1; i < v.size(); i++) {
-			final CellCntrMarker m2 = v.get(i);
-			final Point p1 =
-				new Point(currentsmallest.getX(), currentsmallest.getY());
-			final Point p2 = new Point(m2.getX(), m2.getY());
-			final boolean closer =
-				Math.abs(p1.distance(p)) > Math.abs(p2.distance(p));
-			if (closer) {
-				currentsmallest = m2;
+		ensureIndexed();
+		final int found =
+			gridIndex.query(slice, r.x, r.y, r.x + r.width - 1,
+				r.y + r.height - 1, xs, ys, result);
+		if (holes > 0) {
+			for (int i = 0; i < Math.min(found, result.length); i++) {
+				result[i] = number(result[i]);
 			}
 		}
+		return found;
+	}
 
-		return currentsmallest;
+	public CellCntrMarker getMarkerFromPosition(final Point p,
+		final int sliceIndex)
+	{
+		final int n = getMarkerIndexFromPosition(p, sliceIndex);
+		return n < 0 ? null : getMarker(n);
 	}
 
 	public int getType() {
@@ -104,11 +316,108 @@ public class CellCntrMarkerVector extends Vector<CellCntrMarker> {
 	}
 
 	public Color getColor() {
-		final Context c = (Context) IJ.runPlugIn("org.scijava.Context", "");
-		final OptionsService optionsService = c.service(OptionsService.class);
-		final CellCounterOptions options =
-			optionsService.getOptions(CellCounterOptions.class);
-		return options.getColor(type);
+		return CellCntrColorCache.getColor(type);
+	}
+
+	// -- Helper methods --
+
+	private void ensureCapacity(final int capacity) {
+		if (capacity <= xs.length) return;
+		final int newCapacity = Math.max(capacity, xs.length + (xs.length >> 1));
+		xs = Arrays.copyOf(xs, newCapacity);
+		ys = Arrays.copyOf(ys, newCapacity);
+		zs = Arrays.copyOf(zs, newCapacity);
+		if (tree != null) {
+			removed = Arrays.copyOf(removed, newCapacity);
+			buildTree();
+		}
+	}
+
+	/**
+	 * Builds the indexes over the slots in use. There are no holes then:
+	 * only bulk additions leave the indexes stale, and they compact first.
+	 */
+	private synchronized void buildIndexes() {
+		if (indexed) return;
+		gridIndex.clear();
+		sliceIndex.clear();
+		for (int n = 0; n < used; n++) {
+			gridIndex.add(xs[n], ys[n], zs[n], n);
+			sliceIndex.add(zs[n], n);
+		}
+		indexed = true;
+	}
+
+	/**
+	 * Closes the holes left by removed markers and rebuilds the indexes if
+	 * they were up to date.
+	 */
+	private void compact() {
+		if (holes == 0) return;
+		int n = 0;
+		for (int slot = 0; slot < used; slot++) {
+			if (removed[slot]) continue;
+			xs[n] = xs[slot];
+			ys[n] = ys[slot];
+			zs[n] = zs[slot];
+			n++;
+		}
+		used = n;
+		holes = 0;
+		removed = null;
+		tree = null;
+		if (indexed) {
+			indexed = false;
+			buildIndexes();
+		}
+	}
+
+	/** Returns the column slot of marker {@code n}. */
+	private int slot(final int n) {
+		if (n < 0 || n >= size()) {
+			throw new ArrayIndexOutOfBoundsException(n);
+		}
+		if (holes == 0) return n;
+		// descend the tree to the slot with n markers before it
+		int slot = 0;
+		int rest = n;
+		int step = Integer.highestOneBit(tree.length - 1);
+		for (; step > 0; step >>= 1) {
+			final int next = slot + step;
+			if (next < tree.length && tree[next] <= rest) {
+				slot = next;
+				rest -= tree[next];
+			}
+		}
+		return slot;
+	}
+
+	/** Returns the number of the marker in column slot {@code slot}. */
+	private int number(final int slot) {
+		if (holes == 0) return slot;
+		int n = 0;
+		for (int i = slot; i > 0; i -= i & -i) {
+			n += tree[i];
+		}
+		return n;
+	}
+
+	/** Fills the tree from {@link #removed} in linear time. */
+	private void buildTree() {
+		tree = new int[xs.length + 1];
+		for (int slot = 0; slot < used; slot++) {
+			if (!removed[slot]) tree[slot + 1] = 1;
+		}
+		for (int i = 1; i < tree.length; i++) {
+			final int parent = i + (i & -i);
+			if (parent < tree.length) tree[parent] += tree[i];
+		}
+	}
+
+	private void update(final int slot, final int delta) {
+		for (int i = slot + 1; i < tree.length; i += i & -i) {
+			tree[i] += delta;
+		}
 	}
 
 }
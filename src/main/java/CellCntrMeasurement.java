@@ -0,0 +1,391 @@
+/*
+ * #%L
+ * Cell Counter plugin for ImageJ.
+ * %%
+ * Copyright (C) 2007 - 2015 Kurt De Vos and Board of Regents of the
+ * University of Wisconsin-Madison.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+
+import java.util.Arrays;
+import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Measures the pixel value under every marker and, optionally, the mean,
+ * minimum, maximum and integrated density within a disk or sphere around it.
+ * Planes are read straight from the image stack, so the displayed slice
+ * never changes, and the slices are measured in parallel, in the caller's
+ * fork-join pool if it runs in one. Rows are ordered by slice, then by
+ * counter type, then by the order in which the markers were placed.
+ */
+public class CellCntrMeasurement {
+
+	private final ImagePlus imp;
+	private final Vector<CellCntrMarkerVector> typeVector;
+	private ImageStack stack;
+	private float[] cTable;
+
+	private double radius;
+	private boolean sphere;
+	private boolean allChannels;
+	private Kernel kernel;
+
+	/** First row of each slice; {@code rowStart[size + 1]} is the row count. */
+	private int[] rowStart;
+
+	// one entry per row
+	private int[] types;
+	private int[] typeIndices;
+	private int[] slices;
+	private int[] xs;
+	private int[] ys;
+	private double[] values;
+
+	// neighbourhood statistics, indexed [channel][row]
+	private double[][] means;
+	private double[][] mins;
+	private double[][] maxs;
+	private double[][] intDens;
+
+	public CellCntrMeasurement(final ImagePlus imp,
+		final Vector<CellCntrMarkerVector> typeVector)
+	{
+		this.imp = imp;
+		this.typeVector = typeVector;
+	}
+
+	/**
+	 * Sets the radius, in pixels, of the neighbourhood measured around each
+	 * marker. With a radius of 0 (the default) only the pixel under the marker
+	 * is measured.
+	 */
+	public void setRadius(final double radius) {
+		this.radius = radius;
+	}
+
+	/**
+	 * Measures a sphere instead of a disk around each marker. Its extent in z
+	 * follows from the voxel depth.
+	 */
+	public void setSphere(final boolean sphere) {
+		this.sphere = sphere;
+	}
+
+	/**
+	 * Measures the neighbourhood in every channel instead of only in the
+	 * channel of the marker.
+	 */
+	public void setAllChannels(final boolean allChannels) {
+		this.allChannels = allChannels;
+	}
+
+	/** Takes the measurements. */
+	public void run() {
+		final int size = imp.getStackSize();
+		// the indexes are read from several threads below
+		for (final CellCntrMarkerVector mv : typeVector) {
+			mv.ensureIndexed();
+		}
+		rowStart = new int[size + 2];
+		for (int slice = 1; slice <= size; slice++) {
+			int count = 0;
+			for (final CellCntrMarkerVector mv : typeVector) {
+				count += mv.getSliceCount(slice);
+			}
+			rowStart[slice + 1] = rowStart[slice] + count;
+		}
+		final int rows = rowStart[size + 1];
+		types = new int[rows];
+		typeIndices = new int[rows];
+		slices = new int[rows];
+		xs = new int[rows];
+		ys = new int[rows];
+		values = new double[rows];
+		kernel = null;
+		if (radius > 0) {
+			final Calibration cal = imp.getCalibration();
+			final boolean depth = sphere && imp.getNSlices() > 1;
+			kernel =
+				new Kernel(radius, depth ? cal.pixelWidth / cal.pixelDepth : 0);
+			final int channels = getMeasuredChannels();
+			means = new double[channels][rows];
+			mins = new double[channels][rows];
+			maxs = new double[channels][rows];
+			intDens = new double[channels][rows];
+		}
+		stack = imp.getStack();
+		cTable = imp.getCalibration().getCTable();
+
+		if (ForkJoinTask.inForkJoinPool()) {
+			// share the caller's threads rather than adding a pool's worth
+			new SliceTask(1, size).invoke();
+			return;
+		}
+		final ForkJoinPool pool = new ForkJoinPool();
+		try {
+			pool.invoke(new SliceTask(1, size));
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	/** Returns the number of measured markers. */
+	public int getRowCount() {
+		return rowStart == null ? 0 : rowStart[rowStart.length - 1];
+	}
+
+	/**
+	 * Returns, for each counter type, the mean of the values measured at its
+	 * markers (of the neighbourhood means in the first measured channel if a
+	 * radius is set), or NaN for types without markers.
+	 */
+	public double[] getMeanPerType() {
+		final double[] sums = new double[typeVector.size()];
+		final int[] counts = new int[sums.length];
+		final double[] measured = kernel != null ? means[0] : values;
+		for (int row = 0; row < getRowCount(); row++) {
+			sums[typeIndices[row]] += measured[row];
+			counts[typeIndices[row]]++;
+		}
+		for (int t = 0; t < sums.length; t++) {
+			sums[t] = counts[t] == 0 ? Double.NaN : sums[t] / counts[t];
+		}
+		return sums;
+	}
+
+	/** Returns the measurements as a table, one row per marker. */
+	public CellCntrTable getTable() {
+		final int rows = getRowCount();
+		final int[] channels = new int[rows];
+		final int[] zPositions = new int[rows];
+		final int[] frames = new int[rows];
+		final double[] xCal = new double[rows];
+		final double[] yCal = new double[rows];
+		final double[] zCal = new double[rows];
+		final Calibration cal = imp.getCalibration();
+		for (int slice = 1; slice < rowStart.length - 1; slice++) {
+			if (rowStart[slice] == rowStart[slice + 1]) continue;
+			// from the slice we get the array [channel, slice, frame]
+			final int[] position = imp.convertIndexToPosition(slice);
+			final double z = (position[1] - 1) * cal.pixelDepth;
+			for (int row = rowStart[slice]; row < rowStart[slice + 1]; row++) {
+				channels[row] = position[0];
+				zPositions[row] = position[1];
+				frames[row] = position[2];
+				xCal[row] = xs[row] * cal.pixelWidth;
+				yCal[row] = ys[row] * cal.pixelHeight;
+				zCal[row] = z;
+			}
+		}
+
+		final String unit = cal.getUnit();
+		final CellCntrTable table = new CellCntrTable(rows);
+		table.addColumn("Type", types);
+		table.addColumn("Slice", slices);
+		table.addColumn("X", xs);
+		table.addColumn("Y", ys);
+		table.addColumn("Value", values, CellCntrTable.VALUE_DECIMALS);
+		table.addColumn("C-pos", channels);
+		table.addColumn("Z-pos", zPositions);
+		table.addColumn("T-pos", frames);
+		table.addColumn("X(" + unit + ")", xCal);
+		table.addColumn("Y(" + unit + ")", yCal);
+		table.addColumn("Z(" + unit + ")", zCal);
+		if (kernel != null) {
+			for (int c = 0; c < means.length; c++) {
+				final String suffix =
+					means.length > 1 ? "(C" + (c + 1) + ")" : "";
+				table.addColumn("Mean" + suffix, means[c],
+					CellCntrTable.VALUE_DECIMALS);
+				table.addColumn("Min" + suffix, mins[c],
+					CellCntrTable.VALUE_DECIMALS);
+				table.addColumn("Max" + suffix, maxs[c],
+					CellCntrTable.VALUE_DECIMALS);
+				table.addColumn("IntDen" + suffix, intDens[c],
+					CellCntrTable.VALUE_DECIMALS);
+			}
+		}
+		return table;
+	}
+
+	// -- Helper methods --
+
+	private void measureSlice(final int slice) {
+		int row = rowStart[slice];
+		if (row == rowStart[slice + 1]) return; // do not decode planes needlessly
+		final ImageProcessor ip = stack.getProcessor(slice);
+		ip.setCalibrationTable(cTable);
+		for (int t = 0; t < typeVector.size(); t++) {
+			final CellCntrMarkerVector mv = typeVector.get(t);
+			final int type = mv.getType();
+			final int count = mv.getSliceCount(slice);
+			for (int k = 0; k < count; k++, row++) {
+				final int n = mv.getSliceMarker(slice, k);
+				types[row] = type;
+				typeIndices[row] = t;
+				slices[row] = slice;
+				xs[row] = mv.getX(n);
+				ys[row] = mv.getY(n);
+				values[row] = ip.getPixelValue(xs[row], ys[row]);
+			}
+		}
+		if (kernel != null) measureNeighbourhoods(slice);
+	}
+
+	private int getMeasuredChannels() {
+		return allChannels ? imp.getNChannels() : 1;
+	}
+
+	/** Measures around the markers of one slice, whose rows are filled in. */
+	private void measureNeighbourhoods(final int slice) {
+		final int first = rowStart[slice];
+		final int last = rowStart[slice + 1];
+		final int[] position = imp.convertIndexToPosition(slice);
+		final Calibration cal = imp.getCalibration();
+		final double unitSize =
+			cal.pixelWidth * cal.pixelHeight *
+				(kernel.dz.length > 1 ? cal.pixelDepth : 1);
+		final double[] sums = new double[last - first];
+		final int[] counts = new int[last - first];
+		for (int m = 0; m < getMeasuredChannels(); m++) {
+			final int channel = allChannels ? m + 1 : position[0];
+			final double[] min = mins[m];
+			final double[] max = maxs[m];
+			Arrays.fill(sums, 0);
+			Arrays.fill(counts, 0);
+			Arrays.fill(min, first, last, Double.POSITIVE_INFINITY);
+			Arrays.fill(max, first, last, Double.NEGATIVE_INFINITY);
+			for (int p = 0; p < kernel.dz.length; p++) {
+				final int z = position[1] + kernel.dz[p];
+				if (z < 1 || z > imp.getNSlices()) continue;
+				final int index = imp.getStackIndex(channel, z, position[2]);
+				final ImageProcessor ip = stack.getProcessor(index);
+				ip.setCalibrationTable(cTable);
+				final int width = ip.getWidth();
+				final int height = ip.getHeight();
+				final int[] dx = kernel.dx[p];
+				final int[] dy = kernel.dy[p];
+				for (int row = first; row < last; row++) {
+					final int r = row - first;
+					for (int i = 0; i < dx.length; i++) {
+						final int x = xs[row] + dx[i];
+						final int y = ys[row] + dy[i];
+						if (x < 0 || y < 0 || x >= width || y >= height) {
+							continue;
+						}
+						final double v = ip.getPixelValue(x, y);
+						sums[r] += v;
+						counts[r]++;
+						if (v < min[row]) min[row] = v;
+						if (v > max[row]) max[row] = v;
+					}
+				}
+			}
+			for (int row = first; row < last; row++) {
+				final int r = row - first;
+				if (counts[r] == 0) {
+					means[m][row] = Double.NaN;
+					min[row] = max[row] = intDens[m][row] = Double.NaN;
+					continue;
+				}
+				means[m][row] = sums[r] / counts[r];
+				intDens[m][row] = sums[r] * unitSize;
+			}
+		}
+	}
+
+	// -- Helper classes --
+
+	/**
+	 * Pixel offsets covered by a disk or sphere, grouped by plane so that
+	 * every plane is fetched once per slice.
+	 */
+	private static class Kernel {
+
+		/** Plane offsets. */
+		private final int[] dz;
+		/** In-plane offsets, per plane. */
+		private final int[][] dx;
+		private final int[][] dy;
+
+		/**
+		 * @param radius the radius in pixels
+		 * @param zScale the depth of a plane relative to the pixel width, or 0
+		 *          for a disk
+		 */
+		Kernel(final double radius, final double zScale) {
+			final int zReach =
+				zScale > 0 ? (int) Math.floor(radius * zScale) : 0;
+			dz = new int[2 * zReach + 1];
+			dx = new int[dz.length][];
+			dy = new int[dz.length][];
+			final int reach = (int) Math.floor(radius);
+			final int[] x = new int[(2 * reach + 1) * (2 * reach + 1)];
+			final int[] y = new int[x.length];
+			for (int p = 0; p < dz.length; p++) {
+				dz[p] = p - zReach;
+				final double depth = zScale > 0 ? dz[p] / zScale : 0;
+				final double r2 = radius * radius - depth * depth;
+				int count = 0;
+				for (int j = -reach; j <= reach; j++) {
+					for (int i = -reach; i <= reach; i++) {
+						if (i * i + j * j > r2) continue;
+						x[count] = i;
+						y[count] = j;
+						count++;
+					}
+				}
+				dx[p] = Arrays.copyOf(x, count);
+				dy[p] = Arrays.copyOf(y, count);
+			}
+		}
+	}
+
+	/** Measures a range of slices, splitting it up between threads. */
+	private class SliceTask extends RecursiveAction {
+
+		private final int first;
+		private final int last;
+
+		SliceTask(final int first, final int last) {
+			this.first = first;
+			this.last = last;
+		}
+
+		@Override
+		protected void compute() {
+			if (first == last) {
+				measureSlice(first);
+			}
+			else if (first < last) {
+				final int middle = (first + last) >>> 1;
+				invokeAll(new SliceTask(first, middle), new SliceTask(middle + 1,
+					last));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,355 @@
+/*
+ * #%L
+ * Cell Counter plugin for ImageJ.
+ * %%
+ * Copyright (C) 2007 - 2015 Kurt De Vos and Board of Regents of the
+ * University of Wisconsin-Madison.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import ij.ImagePlus;
+
+import java.util.Vector;
+
+/**
+ * The counting state of one image without any user interface: the counter
+ * types with their names and markers, the image they belong to, and the
+ * operations on them (loading, saving, reports and measurements). The Cell
+ * Counter window works on one of these, and {@link CellCounterService} hands
+ * them out for headless use.
+ */
+public class CellCntrModel {
+
+	/** Number of counter types a new counter starts with. */
+	public static final int DEFAULT_TYPES = 8;
+
+	private ImagePlus image;
+	private String imageFilename;
+	private Vector<CellCntrMarkerVector> typeVector =
+		new Vector<CellCntrMarkerVector>();
+	private final Vector<String> typeNames = new Vector<String>();
+	private int currentType;
+
+	// -- Image --
+
+	public ImagePlus getImage() {
+		return image;
+	}
+
+	/** Sets the image to count on, whose title names the marker file's image. */
+	public void setImage(final ImagePlus image) {
+		this.image = image;
+		if (image != null) imageFilename = image.getTitle();
+	}
+
+	/** Returns the name of the image, as stored in marker files. */
+	public String getImageFilename() {
+		return imageFilename;
+	}
+
+	public void setImageFilename(final String imageFilename) {
+		this.imageFilename = imageFilename;
+	}
+
+	// -- Counter types --
+
+	public int getTypeCount() {
+		return typeVector.size();
+	}
+
+	/**
+	 * Returns the markers of all types. The vector is the model's own, so
+	 * changes to it are changes to the model.
+	 */
+	public Vector<CellCntrMarkerVector> getTypeVector() {
+		return typeVector;
+	}
+
+	/**
+	 * Replaces the markers of all types. Types keep their names by position;
+	 * new ones are called "Type n".
+	 */
+	public void setTypeVector(final Vector<CellCntrMarkerVector> typeVector) {
+		this.typeVector = typeVector;
+		typeNames.setSize(Math.min(typeNames.size(), typeVector.size()));
+		while (typeNames.size() < typeVector.size()) {
+			typeNames.add("Type " + typeVector.get(typeNames.size()).getType());
+		}
+		if (currentType >= typeVector.size()) currentType = 0;
+	}
+
+	public CellCntrMarkerVector getMarkerVector(final int index) {
+		return typeVector.get(index);
+	}
+
+	public String getTypeName(final int index) {
+		return typeNames.get(index);
+	}
+
+	public void setTypeName(final int index, final String name) {
+		typeNames.set(index, name);
+	}
+
+	/** Adds an empty type with the given type number, named "Type n". */
+	public CellCntrMarkerVector addType(final int type) {
+		final CellCntrMarkerVector markerVector = new CellCntrMarkerVector(type);
+		typeVector.add(markerVector);
+		typeNames.add("Type " + type);
+		return markerVector;
+	}
+
+	/** Adds an empty type numbered after the last one. */
+	public CellCntrMarkerVector addType() {
+		return addType(typeVector.size() + 1);
+	}
+
+	/**
+	 * Removes the last type with its markers, unless it is the only one.
+	 *
+	 * @return true if a type was removed
+	 */
+	public boolean removeLastType() {
+		if (typeVector.size() <= 1) return false;
+		typeVector.removeElementAt(typeVector.size() - 1);
+		typeNames.removeElementAt(typeNames.size() - 1);
+		if (currentType >= typeVector.size()) currentType = 0;
+		return true;
+	}
+
+	/** Returns the index of the selected type. */
+	public int getCurrentType() {
+		return currentType;
+	}
+
+	public void setCurrentType(final int currentType) {
+		this.currentType = currentType;
+	}
+
+	/** Removes all markers, keeping the types. */
+	public void reset() {
+		for (final CellCntrMarkerVector mv : typeVector) {
+			mv.clear();
+		}
+	}
+
+	/**
+	 * Returns a copy whose markers can be read on another thread while this
+	 * model goes on changing. The image is shared.
+	 */
+	public CellCntrModel copy() {
+		final CellCntrModel copy = new CellCntrModel();
+		copy.image = image;
+		copy.imageFilename = imageFilename;
+		copy.currentType = currentType;
+		copy.typeVector = new Vector<CellCntrMarkerVector>(typeVector.size());
+		for (final CellCntrMarkerVector mv : typeVector) {
+			copy.typeVector.add(mv.copy());
+		}
+		copy.typeNames.addAll(typeNames);
+		return copy;
+	}
+
+	// -- Files --
+
+	/**
+	 * Reads a marker file, in the XML or the binary format depending on its
+	 * extension.
+	 *
+	 * @return the markers, without an image, or null if the file could not be
+	 *         read
+	 */
+	public static CellCntrModel read(final String path,
+		final CellCntrProgress progress)
+	{
+		final String filename;
+		final String currentType;
+		final Vector<CellCntrMarkerVector> typeVector;
+		if (path.endsWith(WriteBinaryMarkers.EXTENSION)) {
+			final ReadBinaryMarkers rbin = new ReadBinaryMarkers(path, progress);
+			filename = rbin.readImgProperties(ReadXML.IMAGE_FILE_PATH);
+			currentType = rbin.readImgProperties(ReadXML.CURRENT_TYPE);
+			typeVector = rbin.readMarkerData();
+		}
+		else {
+			final ReadXML rxml = new ReadXML(path, progress);
+			filename = rxml.readImgProperties(ReadXML.IMAGE_FILE_PATH);
+			currentType = rxml.readImgProperties(ReadXML.CURRENT_TYPE);
+			typeVector = rxml.readMarkerData();
+		}
+		if (filename == null || typeVector == null || typeVector.isEmpty()) {
+			return null;
+		}
+		// build the indexes here rather than at the first use
+		for (final CellCntrMarkerVector markerVector : typeVector) {
+			markerVector.ensureIndexed();
+		}
+		final CellCntrModel model = new CellCntrModel();
+		model.imageFilename = filename;
+		model.setTypeVector(typeVector);
+		try {
+			final int index = Integer.parseInt(currentType);
+			if (index >= 0 && index < typeVector.size()) model.currentType = index;
+		}
+		catch (final NumberFormatException e) {
+			// keep the first type selected
+		}
+		return model;
+	}
+
+	/**
+	 * Writes the markers to a file, in the binary format if the path ends in
+	 * {@link WriteBinaryMarkers#EXTENSION} and as XML otherwise.
+	 *
+	 * @return true if the file was written
+	 */
+	public boolean save(final String path, final CellCntrProgress progress) {
+		if (path.endsWith(WriteBinaryMarkers.EXTENSION)) {
+			return new WriteBinaryMarkers(path, progress).write(imageFilename,
+				typeVector, currentType);
+		}
+		return new WriteXML(path, progress).writeXML(imageFilename, typeVector,
+			currentType);
+	}
+
+	/**
+	 * Streams the markers to a CSV file.
+	 *
+	 * @see CellCntrCsvExporter
+	 */
+	public boolean exportCsv(final String path, final char separator,
+		final boolean includeValues, final CellCntrProgress progress)
+	{
+		final CellCntrCsvExporter exporter =
+			new CellCntrCsvExporter(path, progress);
+		exporter.setSeparator(separator);
+		exporter.setIncludeValues(includeValues);
+		return exporter.export(image, typeVector);
+	}
+
+	/**
+	 * Adds imported points to the markers with one batched insertion per
+	 * counter type. Points without a valid type go to the type with index
+	 * {@code defaultType}.
+	 *
+	 * @return the number of markers added
+	 * @see CellCntrMarkerImport
+	 */
+	public int importMarkers(final CellCntrMarkerImport points,
+		final int defaultType)
+	{
+		if (defaultType < 0 || defaultType >= typeVector.size()) {
+			throw new IllegalArgumentException("No counter type " +
+				defaultType);
+		}
+		return points.addTo(typeVector, defaultType);
+	}
+
+	// -- Results --
+
+	/**
+	 * Returns the number of markers of every type per slice (for stacks) and
+	 * in total, one column per counter type. The last row holds the totals.
+	 */
+	public CellCntrTable report() {
+		final boolean isStack = image != null && image.getStackSize() > 1;
+		final int slices = isStack ? image.getStackSize() : 0;
+		final int rows = slices + 1;
+		final CellCntrTable table = new CellCntrTable(rows);
+		if (isStack) {
+			// text columns, so that the cells of the totals row stay empty
+			final String[] sliceColumn = new String[rows];
+			final String[] channels = new String[rows];
+			final String[] zPositions = new String[rows];
+			final String[] frames = new String[rows];
+			for (int slice = 1; slice <= slices; slice++) {
+				// from the slice we get the array [channel, slice, frame]
+				final int[] realPosArray = image.convertIndexToPosition(slice);
+				sliceColumn[slice - 1] = Integer.toString(slice);
+				channels[slice - 1] = Integer.toString(realPosArray[0]);
+				zPositions[slice - 1] = Integer.toString(realPosArray[1]);
+				frames[slice - 1] = Integer.toString(realPosArray[2]);
+			}
+			table.addColumn("Slice", sliceColumn);
+			addCountColumns(table, slices);
+			table.addColumn("C-pos", channels);
+			table.addColumn("Z-pos", zPositions);
+			table.addColumn("T-pos", frames);
+		}
+		else {
+			addCountColumns(table, slices);
+		}
+		table.setLabel(slices, "Total");
+		return table;
+	}
+
+	/**
+	 * Measures the markers on the image, including the neighbourhood of the
+	 * given radius around each one if it is positive.
+	 *
+	 * @see CellCntrMeasurement
+	 */
+	public CellCntrTable measure(final double radius, final boolean sphere,
+		final boolean allChannels)
+	{
+		if (image == null) {
+			throw new IllegalStateException("No image to measure on");
+		}
+		final CellCntrMeasurement measurement =
+			new CellCntrMeasurement(image, typeVector);
+		measurement.setRadius(radius);
+		measurement.setSphere(sphere);
+		measurement.setAllChannels(allChannels);
+		measurement.run();
+		return measurement.getTable();
+	}
+
+	/**
+	 * Returns, for every marker of type {@code fromType}, the distance to the
+	 * nearest marker of type {@code toType} and, with a positive radius, the
+	 * number of those within it.
+	 *
+	 * @see CellCntrNearestNeighbours
+	 */
+	public CellCntrTable nearestNeighbours(final int fromType,
+		final int toType, final boolean threeD, final double radius)
+	{
+		final CellCntrNearestNeighbours analysis =
+			new CellCntrNearestNeighbours(image, typeVector);
+		analysis.setFromType(fromType);
+		analysis.setToType(toType);
+		analysis.setThreeD(threeD);
+		analysis.setRadius(radius);
+		analysis.run();
+		return analysis.getTable();
+	}
+
+	// -- Helper methods --
+
+	/** Adds the per-slice and total counts of every type, named by type. */
+	private void addCountColumns(final CellCntrTable table, final int slices) {
+		for (int t = 0; t < typeVector.size(); t++) {
+			final CellCntrMarkerVector mv = typeVector.get(t);
+			final int[] counts = new int[slices + 1];
+			for (int slice = 1; slice <= slices; slice++) {
+				counts[slice - 1] = mv.getSliceCount(slice);
+			}
+			counts[slices] = mv.size();
+			table.addColumn(typeNames.get(t), counts);
+		}
+	}
+
+}
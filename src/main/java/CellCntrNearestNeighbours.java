@@ -0,0 +1,319 @@
+/*
+ * #%L
+ * Cell Counter plugin for ImageJ.
+ * %%
+ * Copyright (C) 2007 - 2015 Kurt De Vos and Board of Regents of the
+ * University of Wisconsin-Madison.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+
+import java.util.Arrays;
+import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * For every marker of one counter type, finds the nearest marker of another
+ * (or the same) type and counts the markers of that type within a radius.
+ * Distances are calibrated. In 2D, only markers on the same slice are
+ * considered; in 3D, markers on all z positions of the same channel and time
+ * frame are, with z scaled by the voxel depth. Markers in different channels
+ * are never neighbours. One {@link CellCntrKdTree} is built per slice (or per
+ * channel and frame) and the markers are looked up in parallel.
+ */
+public class CellCntrNearestNeighbours {
+
+	/** Markers looked up by one task at least. */
+	private static final int CHUNK = 1024;
+
+	private final ImagePlus imp;
+	private final Vector<CellCntrMarkerVector> typeVector;
+
+	private int fromType;
+	private int toType;
+	private boolean threeD;
+	private double radius;
+
+	private double pixelWidth = 1;
+	private double pixelHeight = 1;
+	private double pixelDepth = 1;
+	private String unit = "pixel";
+
+	/** Tree group (slice, or channel and frame) and scaled z of every slice. */
+	private int[] sliceGroups;
+	private double[] sliceZs;
+	private CellCntrKdTree[] trees;
+
+	// one entry per marker of the from type
+	private double[] distances;
+	private int[] nearest;
+	private int[] counts;
+
+	/**
+	 * @param imp the image the markers belong to, for its calibration and
+	 *          dimensions; it may be null, in which case distances are in
+	 *          pixels and every slice is a z position
+	 */
+	public CellCntrNearestNeighbours(final ImagePlus imp,
+		final Vector<CellCntrMarkerVector> typeVector)
+	{
+		this.imp = imp;
+		this.typeVector = typeVector;
+	}
+
+	/** Sets the index of the type whose markers are looked up. */
+	public void setFromType(final int fromType) {
+		this.fromType = fromType;
+	}
+
+	/** Sets the index of the type whose markers are searched for. */
+	public void setToType(final int toType) {
+		this.toType = toType;
+	}
+
+	/**
+	 * Searches the whole z range of each channel and frame rather than each
+	 * slice.
+	 */
+	public void setThreeD(final boolean threeD) {
+		this.threeD = threeD;
+	}
+
+	/**
+	 * Sets the calibrated radius within which markers are counted; with 0
+	 * (the default) nothing is counted.
+	 */
+	public void setRadius(final double radius) {
+		this.radius = radius;
+	}
+
+	/** Finds the nearest neighbours. */
+	public void run() {
+		final CellCntrMarkerVector from = typeVector.get(fromType);
+		final CellCntrMarkerVector to = typeVector.get(toType);
+		if (imp != null) {
+			final Calibration cal = imp.getCalibration();
+			pixelWidth = cal.pixelWidth;
+			pixelHeight = cal.pixelHeight;
+			pixelDepth = cal.pixelDepth;
+			unit = cal.getUnit();
+		}
+		mapSlices(Math.max(maxSlice(from), maxSlice(to)));
+		buildTrees(to);
+
+		final int size = from.size();
+		distances = new double[size];
+		nearest = new int[size];
+		counts = new int[size];
+		final ForkJoinPool pool = new ForkJoinPool();
+		try {
+			pool.invoke(new QueryTask(from, 0, size));
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Returns one row per marker of the from type: its position, the distance
+	 * to and position of its nearest neighbour (NaN if there is none) and,
+	 * with a radius set, the number of neighbours within it.
+	 */
+	public CellCntrTable getTable() {
+		final CellCntrMarkerVector from = typeVector.get(fromType);
+		final CellCntrMarkerVector to = typeVector.get(toType);
+		final int rows = from.size();
+		final int[] types = new int[rows];
+		final int[] slices = new int[rows];
+		final int[] xs = new int[rows];
+		final int[] ys = new int[rows];
+		final double[] nearestXs = new double[rows];
+		final double[] nearestYs = new double[rows];
+		final double[] nearestSlices = new double[rows];
+		for (int i = 0; i < rows; i++) {
+			types[i] = from.getType();
+			slices[i] = from.getZ(i);
+			xs[i] = from.getX(i);
+			ys[i] = from.getY(i);
+			final int n = nearest[i];
+			nearestXs[i] = n < 0 ? Double.NaN : to.getX(n);
+			nearestYs[i] = n < 0 ? Double.NaN : to.getY(n);
+			nearestSlices[i] = n < 0 ? Double.NaN : to.getZ(n);
+		}
+		final CellCntrTable table = new CellCntrTable(rows);
+		table.addColumn("Type", types);
+		table.addColumn("Slice", slices);
+		table.addColumn("X", xs);
+		table.addColumn("Y", ys);
+		table.addColumn("NN Type", constant(rows, to.getType()));
+		table.addColumn("NN Distance (" + unit + ")", distances);
+		table.addColumn("NN X", nearestXs, 0);
+		table.addColumn("NN Y", nearestYs, 0);
+		table.addColumn("NN Slice", nearestSlices, 0);
+		if (radius > 0) {
+			final String r =
+				radius == Math.rint(radius) ? Long.toString((long) radius) : Double
+					.toString(radius);
+			table.addColumn("Within " + r + " " + unit, counts);
+		}
+		return table;
+	}
+
+	// -- Helper methods --
+
+	private static int maxSlice(final CellCntrMarkerVector mv) {
+		final int[] zs = mv.getZColumn();
+		int max = 0;
+		for (int i = 0; i < mv.size(); i++) {
+			if (zs[i] > max) max = zs[i];
+		}
+		return max;
+	}
+
+	private static int[] constant(final int rows, final int value) {
+		final int[] column = new int[rows];
+		Arrays.fill(column, value);
+		return column;
+	}
+
+	/** Works out the tree group and the scaled z of every slice. */
+	private void mapSlices(final int maxSlice) {
+		final int slices =
+			imp == null ? maxSlice : Math.min(maxSlice, imp.getStackSize());
+		sliceGroups = new int[slices + 1];
+		sliceZs = new double[slices + 1];
+		for (int slice = 1; slice <= slices; slice++) {
+			int channel = 1;
+			int z = slice;
+			int frame = 1;
+			int channels = 1;
+			if (imp != null && imp.getStackSize() > 1) {
+				// [channel, slice, frame]
+				final int[] position = imp.convertIndexToPosition(slice);
+				channel = position[0];
+				z = position[1];
+				frame = position[2];
+				channels = imp.getNChannels();
+			}
+			sliceGroups[slice] =
+				threeD ? (frame - 1) * channels + channel : slice;
+			sliceZs[slice] = threeD ? (z - 1) * pixelDepth : 0;
+		}
+	}
+
+	/** Returns the tree group of a marker's slice, or -1 if it is off. */
+	private int group(final int slice) {
+		return slice < 1 || slice >= sliceGroups.length ? -1
+			: sliceGroups[slice];
+	}
+
+	private void buildTrees(final CellCntrMarkerVector mv) {
+		int groups = 0;
+		for (int slice = 1; slice < sliceGroups.length; slice++) {
+			groups = Math.max(groups, sliceGroups[slice] + 1);
+		}
+		final int size = mv.size();
+		final int[] groupSizes = new int[groups];
+		for (int i = 0; i < size; i++) {
+			final int g = group(mv.getZ(i));
+			if (g >= 0) groupSizes[g]++;
+		}
+		final double[][] xs = new double[groups][];
+		final double[][] ys = new double[groups][];
+		final double[][] zs = new double[groups][];
+		final int[][] ids = new int[groups][];
+		for (int g = 0; g < groups; g++) {
+			if (groupSizes[g] == 0) continue;
+			xs[g] = new double[groupSizes[g]];
+			ys[g] = new double[groupSizes[g]];
+			zs[g] = threeD ? new double[groupSizes[g]] : null;
+			ids[g] = new int[groupSizes[g]];
+		}
+		final int[] filled = new int[groups];
+		for (int i = 0; i < size; i++) {
+			final int slice = mv.getZ(i);
+			final int g = group(slice);
+			if (g < 0) continue;
+			final int k = filled[g]++;
+			xs[g][k] = mv.getX(i) * pixelWidth;
+			ys[g][k] = mv.getY(i) * pixelHeight;
+			if (threeD) zs[g][k] = sliceZs[slice];
+			ids[g][k] = i;
+		}
+		trees = new CellCntrKdTree[groups];
+		for (int g = 0; g < groups; g++) {
+			if (groupSizes[g] == 0) continue;
+			trees[g] =
+				new CellCntrKdTree(xs[g], ys[g], zs[g], ids[g], groupSizes[g]);
+		}
+	}
+
+	private void query(final CellCntrMarkerVector from, final int i) {
+		final int slice = from.getZ(i);
+		final int g = group(slice);
+		final CellCntrKdTree tree = g < 0 ? null : trees[g];
+		distances[i] = Double.NaN;
+		nearest[i] = -1;
+		counts[i] = 0;
+		if (tree == null) return;
+		final double x = from.getX(i) * pixelWidth;
+		final double y = from.getY(i) * pixelHeight;
+		final double z = sliceZs[slice];
+		// a marker is not its own neighbour
+		final int self = fromType == toType ? i : -1;
+		final int position = tree.nearest(x, y, z, self);
+		if (position < 0) return;
+		distances[i] = Math.sqrt(tree.distanceSquared(position, x, y, z));
+		nearest[i] = tree.getId(position);
+		if (radius > 0) counts[i] = tree.countWithin(x, y, z, radius, self);
+	}
+
+	// -- Helper classes --
+
+	private class QueryTask extends RecursiveAction {
+
+		private final CellCntrMarkerVector from;
+		private final int first;
+		private final int end;
+
+		QueryTask(final CellCntrMarkerVector from, final int first,
+			final int end)
+		{
+			this.from = from;
+			this.first = first;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - first <= CHUNK) {
+				for (int i = first; i < end; i++) {
+					query(from, i);
+				}
+			}
+			else {
+				final int middle = (first + end) >>> 1;
+				invokeAll(new QueryTask(from, first, middle),
+					new QueryTask(from, middle, end));
+			}
+		}
+	}
+
+}
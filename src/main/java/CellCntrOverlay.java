@@ -0,0 +1,178 @@
+/*
+ * #%L
+ * Cell Counter plugin for ImageJ.
+ * %%
+ * Copyright (C) 2007 - 2015 Kurt De Vos and Board of Regents of the
+ * University of Wisconsin-Madison.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import ij.ImagePlus;
+import ij.gui.Overlay;
+import ij.gui.PointRoi;
+import ij.gui.Roi;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Mirrors the markers into the ImageJ {@link Overlay} of an image, as one
+ * {@link PointRoi} per counter type and slice. ImageJ then draws them with
+ * the rest of the overlay, and they are flattened and saved with the image
+ * (e.g. in a TIFF file) like any other overlay. Other selections in the
+ * overlay are left alone. Each selection is named after its counter type,
+ * so the markers can be told apart (and read back by type) in the overlay.
+ * <p>
+ * Adding or removing a marker only replaces the point selection of its type
+ * and slice; {@link #rebuild()} is for changes of many markers at once.
+ * </p>
+ */
+public class CellCntrOverlay {
+
+	private final ImagePlus imp;
+	private final CellCntrModel model;
+	private final Map<CellCntrMarkerVector, PointRoi[]> rois =
+		new IdentityHashMap<CellCntrMarkerVector, PointRoi[]>();
+	private boolean showAll = false;
+
+	public CellCntrOverlay(final ImagePlus imp, final CellCntrModel model) {
+		this.imp = imp;
+		this.model = model;
+		rebuild();
+	}
+
+	/** Shows the markers of every slice on all slices, or each on its own. */
+	public void setShowAll(final boolean showAll) {
+		if (this.showAll == showAll) return;
+		this.showAll = showAll;
+		rebuild();
+	}
+
+	/** Adds a marker just added to {@code mv} to the overlay. */
+	public void markerAdded(final CellCntrMarkerVector mv, final int x,
+		final int y, final int z)
+	{
+		final PointRoi[] sliceRois = getSliceRois(mv);
+		if (sliceRois == null || z < 1 || z >= sliceRois.length) return;
+		final PointRoi roi = sliceRois[z];
+		if (roi == null) replace(mv, z, makeRoi(mv, z));
+		else replace(mv, z, styled(roi.addPoint(x, y), mv, z));
+	}
+
+	/** Updates the overlay after a marker on slice {@code z} was removed. */
+	public void markerRemoved(final CellCntrMarkerVector mv, final int z) {
+		final PointRoi[] sliceRois = getSliceRois(mv);
+		if (sliceRois == null || z < 1 || z >= sliceRois.length) return;
+		replace(mv, z, makeRoi(mv, z));
+	}
+
+	/**
+	 * Replaces all marker selections of the overlay by new ones, e.g. after
+	 * the types of the model or their names changed.
+	 */
+	public void rebuild() {
+		remove();
+		final int slices = imp.getStackSize();
+		for (final CellCntrMarkerVector mv : model.getTypeVector()) {
+			final PointRoi[] sliceRois = new PointRoi[slices + 1];
+			rois.put(mv, sliceRois);
+			for (int z = 1; z <= slices; z++) {
+				replace(mv, z, makeRoi(mv, z));
+			}
+		}
+	}
+
+	/** Takes the marker selections out of the overlay. */
+	public void remove() {
+		final Overlay overlay = imp.getOverlay();
+		if (overlay != null) {
+			for (final PointRoi[] sliceRois : rois.values()) {
+				for (final PointRoi roi : sliceRois) {
+					if (roi != null) overlay.remove(roi);
+				}
+			}
+		}
+		rois.clear();
+	}
+
+	/** Returns whether a selection is one of the marker selections. */
+	public boolean contains(final Roi roi) {
+		for (final PointRoi[] sliceRois : rois.values()) {
+			for (final PointRoi r : sliceRois) {
+				if (r == roi) return true;
+			}
+		}
+		return false;
+	}
+
+	// -- Helper methods --
+
+	/**
+	 * Returns the selections of a type by slice, starting them for types that
+	 * were added since the last rebuild.
+	 */
+	private PointRoi[] getSliceRois(final CellCntrMarkerVector mv) {
+		PointRoi[] sliceRois = rois.get(mv);
+		if (sliceRois == null && model.getTypeVector().contains(mv)) {
+			sliceRois = new PointRoi[imp.getStackSize() + 1];
+			rois.put(mv, sliceRois);
+		}
+		return sliceRois;
+	}
+
+	/** Puts {@code roi} in the overlay in place of the current one. */
+	private void replace(final CellCntrMarkerVector mv, final int z,
+		final PointRoi roi)
+	{
+		final PointRoi[] sliceRois = rois.get(mv);
+		Overlay overlay = imp.getOverlay();
+		if (overlay == null) {
+			if (roi == null) return;
+			overlay = new Overlay();
+			imp.setOverlay(overlay);
+		}
+		if (sliceRois[z] != null) overlay.remove(sliceRois[z]);
+		sliceRois[z] = roi;
+		if (roi != null) overlay.add(roi);
+	}
+
+	/** Returns the selection of the markers of a type on a slice, if any. */
+	private PointRoi makeRoi(final CellCntrMarkerVector mv, final int z) {
+		final int count = mv.getSliceCount(z);
+		if (count == 0) return null;
+		final float[] x = new float[count];
+		final float[] y = new float[count];
+		for (int k = 0; k < count; k++) {
+			final int i = mv.getSliceMarker(z, k);
+			x[k] = mv.getX(i);
+			y[k] = mv.getY(i);
+		}
+		return styled(new PointRoi(x, y, count), mv, z);
+	}
+
+	private PointRoi styled(final PointRoi roi, final CellCntrMarkerVector mv,
+		final int z)
+	{
+		final int index = model.getTypeVector().indexOf(mv);
+		roi.setStrokeColor(mv.getColor());
+		roi.setName(index < 0 ? "Type " + mv.getType()
+			: model.getTypeName(index));
+		roi.setPosition(showAll ? 0 : z);
+		return roi;
+	}
+
+}
@@ -0,0 +1,210 @@
+/*
+ * #%L
+ * Cell Counter plugin for ImageJ.
+ * %%
+ * Copyright (C) 2007 - 2015 Kurt De Vos and Board of Regents of the
+ * University of Wisconsin-Madison.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.plugin.filter.GaussianBlur;
+import ij.plugin.filter.MaximumFinder;
+import ij.process.ImageProcessor;
+
+import java.awt.Polygon;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finds local maxima on every slice of an image with ImageJ's
+ * {@link MaximumFinder}, to be added as markers that only need correcting
+ * rather than clicking one by one. Each slice can be smoothed with a Gaussian
+ * first, and maxima outside an optional mask selection are dropped. The
+ * slices are processed in parallel and the time spent on each is kept.
+ */
+public class CellCntrSeeder {
+
+	private final ImagePlus imp;
+	private final CellCntrProgress progress;
+
+	private double prominence = 10;
+	private double sigma = 1;
+	private Roi mask;
+	private int channel;
+
+	// per slice, indexed from 1
+	private int[][] xs;
+	private int[][] ys;
+	private long[] nanos;
+
+	private AtomicInteger done;
+
+	public CellCntrSeeder(final ImagePlus imp) {
+		this(imp, null);
+	}
+
+	public CellCntrSeeder(final ImagePlus imp, final CellCntrProgress progress)
+	{
+		this.imp = imp;
+		this.progress = progress;
+	}
+
+	/**
+	 * Sets how far a maximum has to stand out from its surroundings (the
+	 * noise tolerance of Process&gt;Find Maxima), in calibrated pixel values.
+	 */
+	public void setProminence(final double prominence) {
+		this.prominence = prominence;
+	}
+
+	/** Sets the sigma, in pixels, of the smoothing; 0 turns it off. */
+	public void setSigma(final double sigma) {
+		this.sigma = sigma;
+	}
+
+	/** Only keeps maxima inside this area selection, if it is not null. */
+	public void setMask(final Roi mask) {
+		this.mask = mask;
+	}
+
+	/** Only seeds the slices of this channel, or of all channels if 0. */
+	public void setChannel(final int channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * Finds the maxima. Returns false if it was canceled through the
+	 * progress, in which case some slices have no maxima.
+	 */
+	public boolean run() {
+		final int size = imp.getStackSize();
+		xs = new int[size + 1][];
+		ys = new int[size + 1][];
+		nanos = new long[size + 1];
+		done = new AtomicInteger();
+		final ForkJoinPool pool = new ForkJoinPool();
+		try {
+			pool.invoke(new SliceTask(1, size));
+		}
+		finally {
+			pool.shutdown();
+		}
+		return progress == null || !progress.isCanceled();
+	}
+
+	/** Returns the maxima found as points for the given counter type. */
+	public CellCntrMarkerImport getPoints(final int typeIndex) {
+		final CellCntrMarkerImport points = new CellCntrMarkerImport(imp);
+		for (int slice = 1; slice < xs.length; slice++) {
+			if (xs[slice] == null) continue;
+			for (int i = 0; i < xs[slice].length; i++) {
+				points.addPoint(xs[slice][i], ys[slice][i], slice, typeIndex);
+			}
+		}
+		return points;
+	}
+
+	/** Returns the number of maxima and the time taken for every slice. */
+	public CellCntrTable getTimings() {
+		int rows = 0;
+		for (int slice = 1; slice < xs.length; slice++) {
+			if (xs[slice] != null) rows++;
+		}
+		final int[] sliceColumn = new int[rows];
+		final int[] maxima = new int[rows];
+		final double[] millis = new double[rows];
+		int row = 0;
+		for (int slice = 1; slice < xs.length; slice++) {
+			if (xs[slice] == null) continue;
+			sliceColumn[row] = slice;
+			maxima[row] = xs[slice].length;
+			millis[row] = nanos[slice] / 1e6;
+			row++;
+		}
+		final CellCntrTable table = new CellCntrTable(rows);
+		table.addColumn("Slice", sliceColumn);
+		table.addColumn("Maxima", maxima);
+		table.addColumn("Time (ms)", millis, 1);
+		return table;
+	}
+
+	// -- Helper methods --
+
+	private void seedSlice(final int slice) {
+		if (progress != null && progress.isCanceled()) return;
+		if (channel > 0 && imp.getStackSize() > 1 &&
+			imp.convertIndexToPosition(slice)[0] != channel) return;
+		final long start = System.nanoTime();
+		final ImageStack stack = imp.getStack();
+		ImageProcessor ip = stack.getProcessor(slice);
+		ip.setCalibrationTable(imp.getCalibration().getCTable());
+		if (sigma > 0) {
+			// blur a float copy, so the stack itself is left alone
+			ip = ip.getBitDepth() == 32 ? ip.duplicate() : ip.convertToFloat();
+			new GaussianBlur().blurGaussian(ip, sigma, sigma, 0.002);
+		}
+		Polygon maxima = new MaximumFinder().getMaxima(ip, prominence, true);
+		if (maxima == null) maxima = new Polygon(); // interrupted
+		int count = 0;
+		final int[] x = new int[maxima.npoints];
+		final int[] y = new int[maxima.npoints];
+		for (int i = 0; i < maxima.npoints; i++) {
+			if (mask != null && !mask.contains(maxima.xpoints[i],
+				maxima.ypoints[i])) continue;
+			x[count] = maxima.xpoints[i];
+			y[count] = maxima.ypoints[i];
+			count++;
+		}
+		xs[slice] = Arrays.copyOf(x, count);
+		ys[slice] = Arrays.copyOf(y, count);
+		nanos[slice] = System.nanoTime() - start;
+		if (progress != null) {
+			progress.progress(done.incrementAndGet(), imp.getStackSize());
+		}
+	}
+
+	// -- Helper classes --
+
+	private class SliceTask extends RecursiveAction {
+
+		private final int first;
+		private final int last;
+
+		SliceTask(final int first, final int last) {
+			this.first = first;
+			this.last = last;
+		}
+
+		@Override
+		protected void compute() {
+			if (first == last) {
+				seedSlice(first);
+			}
+			else if (first < last) {
+				final int middle = (first + last) >>> 1;
+				invokeAll(new SliceTask(first, middle), new SliceTask(middle + 1,
+					last));
+			}
+		}
+	}
+
+}
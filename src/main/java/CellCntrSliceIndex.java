@@ -0,0 +1,129 @@
+/*
+ * #%L
+ * Cell Counter plugin for ImageJ.
+ * %%
+ * Copyright (C) 2007 - 2015 Kurt De Vos and Board of Regents of the
+ * University of Wisconsin-Madison.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.Arrays;
+
+/**
+ * Maps each slice to the column slots of the markers of one counter type
+ * lying on it. Every bucket is kept in ascending slot order, which is also
+ * the order in which the markers were added. Slots do not change when other
+ * markers are removed, so a removal only touches its own bucket. Markers on
+ * negative slices, or beyond {@link #MAX_SLICE}, are not indexed, so that a
+ * stray slice number in a damaged file cannot make the index allocate
+ * memory for it.
+ */
+public class CellCntrSliceIndex {
+
+	/** The highest slice that is indexed. */
+	public static final int MAX_SLICE = 1 << 20;
+
+	private int[][] buckets = new int[0][];
+	/** Entries in use per bucket, removed ones included. */
+	private int[] lengths = new int[0];
+	/** Markers per bucket. */
+	private int[] sizes = new int[0];
+
+	public void add(final int z, final int n) {
+		if (z < 0 || z > MAX_SLICE) return;
+		if (z >= buckets.length) {
+			buckets = Arrays.copyOf(buckets, z + 1);
+			lengths = Arrays.copyOf(lengths, z + 1);
+			sizes = Arrays.copyOf(sizes, z + 1);
+		}
+		int[] bucket = buckets[z];
+		if (bucket == null) {
+			bucket = new int[4];
+			buckets[z] = bucket;
+		}
+		else if (lengths[z] == bucket.length) {
+			bucket = Arrays.copyOf(bucket, bucket.length * 2);
+			buckets[z] = bucket;
+		}
+		bucket[lengths[z]++] = n;
+		sizes[z]++;
+	}
+
+	/**
+	 * Removes slot {@code n} from its bucket. The entry is only marked as
+	 * removed (stored as {@code ~n}, which keeps the bucket sorted by slot),
+	 * and the bucket is compacted when it is next read by position, so that
+	 * removing many markers in a row does not move the bucket every time.
+	 */
+	public void remove(final int z, final int n) {
+		if (z < 0 || z >= buckets.length || sizes[z] == 0) return;
+		final int[] bucket = buckets[z];
+		final int k = find(bucket, lengths[z], n);
+		if (k < 0) return;
+		bucket[k] = ~n;
+		sizes[z]--;
+		// drop removed entries at the end straight away
+		while (lengths[z] > 0 && bucket[lengths[z] - 1] < 0) {
+			lengths[z]--;
+		}
+	}
+
+	public void clear() {
+		buckets = new int[0][];
+		lengths = new int[0];
+		sizes = new int[0];
+	}
+
+	/** Returns the number of markers on slice {@code z}. */
+	public int size(final int z) {
+		return z < 0 || z >= sizes.length ? 0 : sizes[z];
+	}
+
+	/** Returns the slot of the {@code k}-th marker on slice {@code z}. */
+	public int get(final int z, final int k) {
+		if (k < 0 || k >= size(z)) throw new ArrayIndexOutOfBoundsException(k);
+		if (lengths[z] != sizes[z]) compact(z);
+		return buckets[z][k];
+	}
+
+	// -- Helper methods --
+
+	private synchronized void compact(final int z) {
+		if (lengths[z] == sizes[z]) return; // done by another thread
+		final int[] bucket = buckets[z];
+		int k = 0;
+		for (int i = 0; i < lengths[z]; i++) {
+			if (bucket[i] >= 0) bucket[k++] = bucket[i];
+		}
+		lengths[z] = k;
+	}
+
+	/** Returns the position of slot {@code n} in a bucket, or -1. */
+	private static int find(final int[] bucket, final int length, final int n) {
+		int low = 0;
+		int high = length - 1;
+		while (low <= high) {
+			final int mid = (low + high) >>> 1;
+			final int value = bucket[mid] < 0 ? ~bucket[mid] : bucket[mid];
+			if (value < n) low = mid + 1;
+			else if (value > n) high = mid - 1;
+			else return bucket[mid] < 0 ? -1 : mid;
+		}
+		return -1;
+	}
+
+}
@@ -0,0 +1,275 @@
+/*
+ * #%L
+ * Cell Counter plugin for ImageJ.
+ * %%
+ * Copyright (C) 2007 - 2015 Kurt De Vos and Board of Regents of the
+ * University of Wisconsin-Madison.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import ij.measure.ResultsTable;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Table of results kept as whole columns. It is filled in one go by the
+ * code producing the results and then either copied into a
+ * {@link ResultsTable} column by column or written to a CSV file, avoiding
+ * the per-row formatting of the text window.
+ */
+public class CellCntrTable {
+
+	/** Rows formatted per write when saving. */
+	static final int CHUNK_ROWS = 4096;
+
+	/**
+	 * Decimal places of pixel values; as many as a plain {@code %f}, so that
+	 * values of 32-bit images keep their precision.
+	 */
+	static final int VALUE_DECIMALS = 6;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final int rows;
+	private final List<String> headings = new ArrayList<String>();
+	/** Each column is an int[], double[] or String[] holding all rows. */
+	private final List<Object> columns = new ArrayList<Object>();
+	private final List<Integer> decimals = new ArrayList<Integer>();
+	private String[] labels;
+
+	public CellCntrTable(final int rows) {
+		this.rows = rows;
+	}
+
+	public int getRowCount() {
+		return rows;
+	}
+
+	public void addColumn(final String heading, final int[] values) {
+		checkLength(values.length);
+		add(heading, values, 0);
+	}
+
+	/** Adds a column shown with three decimal places. */
+	public void addColumn(final String heading, final double[] values) {
+		addColumn(heading, values, 3);
+	}
+
+	public void addColumn(final String heading, final double[] values,
+		final int decimalPlaces)
+	{
+		checkLength(values.length);
+		add(heading, values, decimalPlaces);
+	}
+
+	public void addColumn(final String heading, final String[] values) {
+		checkLength(values.length);
+		add(heading, values, 0);
+	}
+
+	/** Sets the label of a row, shown in a column of its own. */
+	public void setLabel(final int row, final String label) {
+		if (labels == null) labels = new String[rows];
+		labels[row] = label;
+	}
+
+	/** Copies the table into a new {@link ResultsTable}. */
+	public ResultsTable toResultsTable() {
+		final ResultsTable rt = new ResultsTable();
+		// grow the table before it has columns, which keeps this cheap
+		for (int row = 0; row < rows; row++) {
+			rt.incrementCounter();
+		}
+		for (int c = 0; c < columns.size(); c++) {
+			final Object values = columns.get(c);
+			if (values instanceof String[]) {
+				final String[] strings = (String[]) values;
+				for (int row = 0; row < rows; row++) {
+					if (strings[row] == null) continue;
+					rt.setValue(headings.get(c), row, strings[row]);
+				}
+				continue;
+			}
+			final int column = rt.getFreeColumn(headings.get(c));
+			if (values instanceof int[]) {
+				final int[] ints = (int[]) values;
+				for (int row = 0; row < rows; row++) {
+					rt.setValue(column, row, ints[row]);
+				}
+			}
+			else {
+				final double[] doubles = (double[]) values;
+				for (int row = 0; row < rows; row++) {
+					rt.setValue(column, row, doubles[row]);
+				}
+			}
+			rt.setDecimalPlaces(column, decimals.get(c));
+		}
+		if (labels != null) {
+			for (int row = 0; row < rows; row++) {
+				if (labels[row] != null) rt.setLabel(labels[row], row);
+			}
+		}
+		return rt;
+	}
+
+	/** Shows the table in a results window with the given title. */
+	public void show(final String title) {
+		toResultsTable().show(title);
+	}
+
+	/**
+	 * Writes the table to a comma-separated file. Rows are formatted in
+	 * chunks into a buffer that is reused, so writing needs little memory
+	 * besides the table itself.
+	 */
+	public void saveAsCsv(final File file) throws IOException {
+		final Writer out =
+			new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+				UTF8), 1 << 16);
+		try {
+			write(out, ',');
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/** Writes the table with the given separator. */
+	public void write(final Writer out, final char separator)
+		throws IOException
+	{
+		write(out, separator, true);
+	}
+
+	/**
+	 * Writes the table with the given separator, leaving out the line of
+	 * headings unless {@code withHeadings} is set, e.g. to append the rows to
+	 * a file written by an earlier table with the same columns. Headings,
+	 * labels and text values are quoted where they contain the separator, a
+	 * quote or a line break.
+	 */
+	public void write(final Writer out, final char separator,
+		final boolean withHeadings) throws IOException
+	{
+		final StringBuilder sb = new StringBuilder(1 << 16);
+		if (withHeadings) {
+			if (labels != null) sb.append("Label").append(separator);
+			for (int c = 0; c < headings.size(); c++) {
+				if (c > 0) sb.append(separator);
+				sb.append(quote(headings.get(c), separator));
+			}
+			sb.append('\n');
+		}
+		for (int row = 0; row < rows; row++) {
+			if (labels != null) {
+				final String label = labels[row];
+				if (label != null) sb.append(quote(label, separator));
+				sb.append(separator);
+			}
+			for (int c = 0; c < columns.size(); c++) {
+				if (c > 0) sb.append(separator);
+				final Object values = columns.get(c);
+				if (values instanceof int[]) sb.append(((int[]) values)[row]);
+				else if (values instanceof String[]) {
+					final String value = ((String[]) values)[row];
+					if (value != null) sb.append(quote(value, separator));
+				}
+				else appendNumber(sb, ((double[]) values)[row], decimals.get(c));
+			}
+			sb.append('\n');
+			if ((row + 1) % CHUNK_ROWS == 0) {
+				out.append(sb);
+				sb.setLength(0);
+			}
+		}
+		out.append(sb);
+	}
+
+	/**
+	 * Appends {@code value} with the given number of decimal places, like
+	 * {@link ResultsTable#d2s} but without going through a
+	 * {@link java.text.DecimalFormat}.
+	 */
+	static void appendNumber(final StringBuilder sb, final double value,
+		final int decimalPlaces)
+	{
+		if (Double.isNaN(value)) {
+			sb.append("NaN");
+			return;
+		}
+		long scale = 1;
+		for (int i = 0; i < decimalPlaces; i++) {
+			scale *= 10;
+		}
+		final double scaled = Math.abs(value) * scale;
+		if (Double.isInfinite(value) || scaled >= Long.MAX_VALUE / 10) {
+			sb.append(value);
+			return;
+		}
+		final long units = Math.round(scaled);
+		if (value < 0 && units != 0) sb.append('-');
+		sb.append(units / scale);
+		if (decimalPlaces == 0) return;
+		sb.append('.');
+		final String fraction = Long.toString(units % scale);
+		for (int i = fraction.length(); i < decimalPlaces; i++) {
+			sb.append('0');
+		}
+		sb.append(fraction);
+	}
+
+	// -- Helper methods --
+
+	private void add(final String heading, final Object values,
+		final int decimalPlaces)
+	{
+		// results tables need unique headings
+		String unique = heading;
+		for (int n = 2; headings.contains(unique); n++) {
+			unique = heading + " (" + n + ")";
+		}
+		headings.add(unique);
+		columns.add(values);
+		decimals.add(decimalPlaces);
+	}
+
+	private void checkLength(final int length) {
+		if (length < rows) {
+			throw new IllegalArgumentException("Column has " + length +
+				" values instead of " + rows);
+		}
+	}
+
+	private static String quote(final String s, final char separator) {
+		if (s.indexOf(separator) < 0 && s.indexOf('"') < 0 &&
+			s.indexOf('\n') < 0 && s.indexOf('\r') < 0)
+		{
+			return s;
+		}
+		return '"' + s.replace("\"", "\"\"") + '"';
+	}
+
+}
@@ -26,10 +26,16 @@ import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.WindowManager;
+import ij.gui.GenericDialog;
 import ij.gui.ImageWindow;
+import ij.gui.Overlay;
 import ij.gui.Roi;
 import ij.gui.StackWindow;
+import ij.io.FileInfo;
+import ij.io.OpenDialog;
+import ij.io.SaveDialog;
 import ij.measure.Calibration;
+import ij.plugin.frame.RoiManager;
 import ij.process.ImageProcessor;
 
 import java.awt.Dimension;
@@ -43,8 +49,15 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.ListIterator;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.BorderFactory;
 import javax.swing.ButtonGroup;
@@ -55,7 +68,11 @@ import javax.swing.JPanel;
 import javax.swing.JRadioButton;
 import javax.swing.JSeparator;
 import javax.swing.JTextField;
+import javax.swing.ProgressMonitor;
 import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
 import javax.swing.WindowConstants;
 import javax.swing.border.EtchedBorder;
 
@@ -81,15 +98,29 @@ public class CellCounter extends JFrame implements ActionListener, ItemListener
 	private static final String KEEPORIGINAL = "Keep Original";
 	private static final String SHOWNUMBERS = "Show Numbers";
 	private static final String SHOWALL = "Show All";
+	private static final String USEOVERLAY = "Use Overlay";
 	private static final String RESET = "Reset";
 	private static final String EXPORTMARKERS = "Save Markers";
 	private static final String LOADMARKERS = "Load Markers";
 	private static final String EXPORTIMG = "Export Image";
+	private static final String EXPORTCSV = "Export CSV...";
+	private static final String IMPORTMARKERS = "Import Markers...";
 	private static final String MEASURE = "Measure...";
+	private static final String SEED = "Seed Markers...";
+	private static final String DISTANCES = "Distances...";
 
 	private static final String TYPE_COMMAND_PREFIX = "type";
 
-	private Vector<CellCntrMarkerVector> typeVector;
+	private static final String[] NEIGHBOURHOODS = { "Disk", "Sphere" };
+	private static final String[] EXPORT_FORMATS = { "CSV", "TSV" };
+	private static final String[] DISTANCE_MODES = { "2D (per slice)",
+		"3D (calibrated)" };
+	private static final String SOURCE_SELECTION = "Point selection";
+	private static final String SOURCE_ROI_MANAGER = "ROI Manager";
+	private static final String SOURCE_OVERLAY = "Image overlay";
+	private static final String SOURCE_TABLE = "Table file (CSV/TSV)";
+
+	private final CellCntrModel model;
 	private Vector<JRadioButton> dynRadioVector;
 	private final Vector<JTextField> txtFieldVector;
 	private CellCntrMarkerVector markerVector;
@@ -104,6 +135,7 @@ public class CellCounter extends JFrame implements ActionListener, ItemListener
 	private JCheckBox newCheck;
 	private JCheckBox numbersCheck;
 	private JCheckBox showAllCheck;
+	private JCheckBox overlayCheck;
 	private ButtonGroup radioGrp;
 	private JSeparator separator;
 	private JButton addButton;
@@ -117,25 +149,65 @@ public class CellCounter extends JFrame implements ActionListener, ItemListener
 	private JButton exportButton;
 	private JButton loadButton;
 	private JButton exportimgButton;
+	private JButton exportCsvButton;
+	private JButton importButton;
 	private JButton measureButton;
+	private JButton seedButton;
+	private JButton distancesButton;
 
 	private boolean keepOriginal = false;
 
+	// settings of the last measurement
+	private double measureRadius = 0;
+	private boolean measureSphere = false;
+	private boolean measureAllChannels = false;
+	private boolean measureToFile = false;
+
+	// settings of the last export
+	private boolean exportTabs = false;
+	private boolean exportGzip = false;
+	private boolean exportValues = false;
+
+	// settings of the last distance analysis
+	private int distanceFromType = 1;
+	private int distanceToType = 0;
+	private boolean distanceThreeD = false;
+	private double distanceRadius = 0;
+
+	// settings of the last seeding
+	private double seedProminence = 10;
+	private double seedSigma = 1;
+	private boolean seedUseMask = false;
+	private int seedChannel = 0;
+
+	// source of the last import
+	private String importSource = SOURCE_SELECTION;
+
 	private CellCntrImageCanvas ic;
+	private CellCntrJournal journal;
 
 	private ImagePlus img;
 	private ImagePlus counterImg;
 
 	private GridLayout dynGrid;
 
+	/** Milliseconds over which counter updates are merged. */
+	private static final int TXT_FIELD_UPDATE_DELAY = 40;
+
+	private final Timer txtFieldTimer;
+	private int[] shownCounts = new int[0];
+
 	static CellCounter instance;
 
 	public CellCounter() {
 		super("Cell Counter");
 		setResizable(false);
-		typeVector = new Vector<CellCntrMarkerVector>();
+		model = new CellCntrModel();
 		txtFieldVector = new Vector<JTextField>();
 		dynRadioVector = new Vector<JRadioButton>();
+		txtFieldTimer =
+			new Timer(TXT_FIELD_UPDATE_DELAY, new TxtFieldUpdater());
+		txtFieldTimer.setRepeats(false);
 		initGUI();
 		populateTxtFields();
 		instance = this;
@@ -384,6 +456,15 @@ public class CellCounter extends JFrame implements ActionListener, ItemListener
 		gb.setConstraints(showAllCheck, gbc);
 		statButtonPanel.add(showAllCheck);
 
+		overlayCheck = new JCheckBox(USEOVERLAY);
+		overlayCheck.setToolTipText("When selected, markers are kept in the " +
+			"image overlay and saved with the image");
+		overlayCheck.setSelected(false);
+		overlayCheck.setEnabled(false);
+		overlayCheck.addItemListener(this);
+		gb.setConstraints(overlayCheck, gbc);
+		statButtonPanel.add(overlayCheck);
+
 		gbc = new GridBagConstraints();
 		gbc.anchor = GridBagConstraints.NORTHWEST;
 		gbc.fill = GridBagConstraints.BOTH;
@@ -403,6 +484,29 @@ public class CellCounter extends JFrame implements ActionListener, ItemListener
 		gb.setConstraints(loadButton, gbc);
 		statButtonPanel.add(loadButton);
 
+		gbc = new GridBagConstraints();
+		gbc.anchor = GridBagConstraints.NORTHWEST;
+		gbc.fill = GridBagConstraints.BOTH;
+		gbc.gridx = 0;
+		gbc.gridwidth = GridBagConstraints.REMAINDER;
+		importButton =
+			makeButton(IMPORTMARKERS, "Add markers from a point selection, " +
+				"the ROI Manager or a table");
+		importButton.setEnabled(false);
+		gb.setConstraints(importButton, gbc);
+		statButtonPanel.add(importButton);
+
+		gbc = new GridBagConstraints();
+		gbc.anchor = GridBagConstraints.NORTHWEST;
+		gbc.fill = GridBagConstraints.BOTH;
+		gbc.gridx = 0;
+		gbc.gridwidth = GridBagConstraints.REMAINDER;
+		exportCsvButton =
+			makeButton(EXPORTCSV, "Export marker coordinates to a CSV file");
+		exportCsvButton.setEnabled(false);
+		gb.setConstraints(exportCsvButton, gbc);
+		statButtonPanel.add(exportCsvButton);
+
 		gbc = new GridBagConstraints();
 		gbc.anchor = GridBagConstraints.NORTHWEST;
 		gbc.fill = GridBagConstraints.BOTH;
@@ -435,6 +539,29 @@ public class CellCounter extends JFrame implements ActionListener, ItemListener
 		gb.setConstraints(measureButton, gbc);
 		statButtonPanel.add(measureButton);
 
+		gbc = new GridBagConstraints();
+		gbc.anchor = GridBagConstraints.NORTHWEST;
+		gbc.fill = GridBagConstraints.BOTH;
+		gbc.gridx = 0;
+		gbc.gridwidth = GridBagConstraints.REMAINDER;
+		distancesButton =
+			makeButton(DISTANCES,
+				"Distance from each marker to the nearest one of another type");
+		distancesButton.setEnabled(false);
+		gb.setConstraints(distancesButton, gbc);
+		statButtonPanel.add(distancesButton);
+
+		gbc = new GridBagConstraints();
+		gbc.anchor = GridBagConstraints.NORTHWEST;
+		gbc.fill = GridBagConstraints.BOTH;
+		gbc.gridx = 0;
+		gbc.gridwidth = GridBagConstraints.REMAINDER;
+		seedButton =
+			makeButton(SEED, "Place markers on local maxima of every slice");
+		seedButton.setEnabled(false);
+		gb.setConstraints(seedButton, gbc);
+		statButtonPanel.add(seedButton);
+
 		gbc = new GridBagConstraints();
 		gbc.anchor = GridBagConstraints.NORTHWEST;
 		gbc.fill = GridBagConstraints.NONE;
@@ -456,16 +583,48 @@ public class CellCounter extends JFrame implements ActionListener, ItemListener
 		return txtFld;
 	}
 
+	/**
+	 * Schedules an update of the counter fields. Requests arriving in quick
+	 * succession, e.g. while clicking rapidly, are merged into one update.
+	 */
 	void populateTxtFields() {
-		final ListIterator<CellCntrMarkerVector> it = typeVector.listIterator();
+		if (!txtFieldTimer.isRunning()) txtFieldTimer.start();
+	}
+
+	/**
+	 * Shows the current marker counts, touching only the fields whose count
+	 * changed. The window is packed again only when a field has grown too
+	 * narrow for its number.
+	 */
+	private void updateTxtFields() {
+		if (shownCounts.length != txtFieldVector.size()) {
+			shownCounts = new int[txtFieldVector.size()];
+			Arrays.fill(shownCounts, -1);
+		}
+		boolean relayout = false;
+		final ListIterator<CellCntrMarkerVector> it =
+			model.getTypeVector().listIterator();
 		while (it.hasNext()) {
 			final int index = it.nextIndex();
 			final CellCntrMarkerVector markerVector = it.next();
+			if (index >= txtFieldVector.size()) break;
 			final int count = markerVector.size();
+			if (count == shownCounts[index]) continue;
+			shownCounts[index] = count;
 			final JTextField tArea = txtFieldVector.get(index);
 			tArea.setText("" + count);
+			if (tArea.getPreferredSize().width > tArea.getWidth()) relayout = true;
+		}
+		if (relayout) validateLayout();
+	}
+
+	/** Runs {@link #updateTxtFields()} when the update timer fires. */
+	private class TxtFieldUpdater implements ActionListener {
+
+		@Override
+		public void actionPerformed(final ActionEvent e) {
+			updateTxtFields();
 		}
-		validateLayout();
 	}
 
 	private JRadioButton makeDynRadioButton(final int id) {
@@ -474,8 +633,7 @@ public class CellCounter extends JFrame implements ActionListener, ItemListener
 		jrButton.addActionListener(this);
 		dynRadioVector.add(jrButton);
 		radioGrp.add(jrButton);
-		markerVector = new CellCntrMarkerVector(id);
-		typeVector.add(markerVector);
+		markerVector = model.addType(id);
 		dynTxtPanel.add(makeDynamicTextArea());
 		return jrButton;
 	}
@@ -488,6 +646,7 @@ public class CellCounter extends JFrame implements ActionListener, ItemListener
 	}
 
 	private void initializeImage() {
+		stopJournal(true);
 		reset();
 		img = WindowManager.getCurrentImage();
 		final boolean v139t = IJ.getVersion().compareTo("1.39t") >= 0;
@@ -506,17 +665,30 @@ public class CellCounter extends JFrame implements ActionListener, ItemListener
 			@SuppressWarnings("unchecked")
 			final Vector<Roi> displayList =
 				v139t ? img.getCanvas().getDisplayList() : null;
-			ic = new CellCntrImageCanvas(counterImg, typeVector, this, displayList);
+			ic =
+				new CellCntrImageCanvas(counterImg, model.getTypeVector(), this,
+					displayList);
 			new ImageWindow(counterImg, ic);
 		}
 		else if (img.getStackSize() > 1) {
 			final ImageStack stack = img.getStack();
-			final int size = stack.getSize();
-			final ImageStack counterStack = img.createEmptyStack();
-			for (int i = 1; i <= size; i++) {
-				ImageProcessor ip = stack.getProcessor(i);
-				if (keepOriginal) ip = ip.crop();
-				counterStack.addSlice(stack.getSliceLabel(i), ip);
+			final ImageStack counterStack;
+			if (stack.isVirtual()) {
+				// planes are decoded on demand and only a few are kept
+				counterStack = new CellCntrCachedStack(stack);
+			}
+			else if (keepOriginal) {
+				// slices are only copied once the counter window changes them
+				counterStack = new CellCntrLazyStack(stack);
+			}
+			else {
+				// the original is closed below, so its pixels can be taken over
+				counterStack = img.createEmptyStack();
+				final int size = stack.getSize();
+				for (int i = 1; i <= size; i++) {
+					counterStack.addSlice(stack.getSliceLabel(i), stack
+						.getPixels(i));
+				}
 			}
 			counterImg =
 				new ImagePlus("Counter Window - " + img.getTitle(), counterStack);
@@ -532,12 +704,17 @@ public class CellCounter extends JFrame implements ActionListener, ItemListener
 			@SuppressWarnings("unchecked")
 			final Vector<Roi> displayList =
 				v139t ? img.getCanvas().getDisplayList() : null;
-			ic = new CellCntrImageCanvas(counterImg, typeVector, this, displayList);
+			ic =
+				new CellCntrImageCanvas(counterImg, model.getTypeVector(), this,
+					displayList);
 			new StackWindow(counterImg, ic);
 		}
 		
 		Calibration cal = img.getCalibration();	//	to conserve voxel size of the original image
 		counterImg.setCalibration(cal);
+		model.setImage(counterImg);
+		// marker files name the original image
+		model.setImageFilename(img.getTitle());
 		
 		if (!keepOriginal) {
 			img.changes = false;
@@ -547,6 +724,8 @@ public class CellCounter extends JFrame implements ActionListener, ItemListener
 		numbersCheck.setEnabled(true);
 		showAllCheck.setSelected(false);
 		if (counterImg.getStackSize() > 1) showAllCheck.setEnabled(true);
+		overlayCheck.setEnabled(true);
+		ic.setOverlayMode(overlayCheck.isSelected());
 		addButton.setEnabled(true);
 		removeButton.setEnabled(true);
 		renameButton.setEnabled(true);
@@ -555,7 +734,12 @@ public class CellCounter extends JFrame implements ActionListener, ItemListener
 		resetButton.setEnabled(true);
 		exportButton.setEnabled(true);
 		exportimgButton.setEnabled(true);
+		exportCsvButton.setEnabled(true);
+		importButton.setEnabled(true);
 		measureButton.setEnabled(true);
+		seedButton.setEnabled(true);
+		distancesButton.setEnabled(true);
+		if (img != null) startJournal(img);
 	}
 
 	void validateLayout() {
@@ -576,8 +760,9 @@ public class CellCounter extends JFrame implements ActionListener, ItemListener
 			dynGrid.setRows(i);
 			dynButtonPanel.add(makeDynRadioButton(i));
 			validateLayout();
+			if (journal != null) journal.typeAdded(i);
 
-			if (ic != null) ic.setTypeVector(typeVector);
+			if (ic != null) ic.setTypeVector(model.getTypeVector());
 		}
 		else if (command.equals(REMOVE)) {
 			if (dynRadioVector.size() > 1) {
@@ -592,12 +777,12 @@ public class CellCounter extends JFrame implements ActionListener, ItemListener
 				dynTxtPanel.remove(field);
 				txtFieldVector.removeElementAt(txtFieldVector.size() - 1);
 			}
-			if (typeVector.size() > 1) {
-				typeVector.removeElementAt(typeVector.size() - 1);
+			if (model.removeLastType() && journal != null) {
+				journal.typeRemoved();
 			}
 			validateLayout();
 
-			if (ic != null) ic.setTypeVector(typeVector);
+			if (ic != null) ic.setTypeVector(model.getTypeVector());
 		}
 		else if (command.equals(RENAME)) {
 			if (currentMarkerIndex < 0) return; // no counter type selected
@@ -608,6 +793,8 @@ public class CellCounter extends JFrame implements ActionListener, ItemListener
 			radioGrp.remove(button);
 			button.setText(name);
 			radioGrp.add(button);
+			model.setTypeName(currentMarkerIndex, name);
+			if (ic != null) ic.markersChanged(); // renames the overlay
 		}
 		else if (command.equals(INITIALIZE)) {
 			initializeImage();
@@ -620,11 +807,13 @@ public class CellCounter extends JFrame implements ActionListener, ItemListener
 				return;
 			}
 			// ic.setDelmode(false); // just in case
-			currentMarkerVector = typeVector.get(currentMarkerIndex);
+			model.setCurrentType(currentMarkerIndex);
+			currentMarkerVector = model.getMarkerVector(currentMarkerIndex);
 			ic.setCurrentMarkerVector(currentMarkerVector);
 		}
 		else if (command.equals(DELETE)) {
-			ic.removeLastMarker();
+			ic.removeLastMarker(); // repaints only the removed marker
+			return;
 		}
 		else if (command.equals(RESET)) {
 			reset();
@@ -641,7 +830,13 @@ public class CellCounter extends JFrame implements ActionListener, ItemListener
 		else if (command.equals(LOADMARKERS)) {
 			if (ic == null) initializeImage();
 			loadMarkers();
-			validateLayout();
+		}
+		else if (command.equals(EXPORTCSV)) {
+			exportCsv();
+		}
+		else if (command.equals(IMPORTMARKERS)) {
+			importMarkers(); // repaints once when the markers are in
+			return;
 		}
 		else if (command.equals(EXPORTIMG)) {
 			ic.imageWithMarkers().show();
@@ -649,6 +844,13 @@ public class CellCounter extends JFrame implements ActionListener, ItemListener
 		else if (command.equals(MEASURE)) {
 			measure();
 		}
+		else if (command.equals(DISTANCES)) {
+			distances();
+		}
+		else if (command.equals(SEED)) {
+			seedMarkers(); // repaints once when the markers are in
+			return;
+		}
 		if (ic != null) ic.repaint();
 		populateTxtFields();
 	}
@@ -680,6 +882,9 @@ public class CellCounter extends JFrame implements ActionListener, ItemListener
 			}
 			ic.repaint();
 		}
+		else if (e.getItem().equals(overlayCheck)) {
+			ic.setOverlayMode(e.getStateChange() == ItemEvent.SELECTED);
+		}
 		else if (e.getItem().equals(showAllCheck)) {
 			if (e.getStateChange() == ItemEvent.SELECTED) {
 				ic.setShowAll(true);
@@ -692,19 +897,127 @@ public class CellCounter extends JFrame implements ActionListener, ItemListener
 	}
 
 	public void measure() {
-		ic.measure();
+		final GenericDialog gd = new GenericDialog("Measure");
+		gd.addNumericField("Radius", measureRadius, 1, 6,
+			"pixels (0 = marker pixel only)");
+		gd.addChoice("Neighbourhood", NEIGHBOURHOODS,
+			NEIGHBOURHOODS[measureSphere ? 1 : 0]);
+		gd.addCheckbox("All channels", measureAllChannels);
+		gd.addCheckbox("Save to CSV file instead of showing", measureToFile);
+		gd.showDialog();
+		if (gd.wasCanceled()) return;
+		measureRadius = Math.max(0, gd.getNextNumber());
+		measureSphere = gd.getNextChoiceIndex() == 1;
+		measureAllChannels = gd.getNextBoolean();
+		measureToFile = gd.getNextBoolean();
+
+		String path = null;
+		if (measureToFile) {
+			final SaveDialog sd =
+				new SaveDialog("Save Measurements", "Measurements_" +
+					img.getTitle(), ".csv");
+			if (sd.getFileName() == null) return; // canceled
+			path = sd.getDirectory() + sd.getFileName();
+		}
+		final CellCntrTable table =
+			model.measure(measureRadius, measureSphere, measureAllChannels);
+		if (path == null) {
+			table.show("Results");
+			return;
+		}
+		try {
+			table.saveAsCsv(new File(path));
+		}
+		catch (final IOException e) {
+			IJ.error("Could not save the measurements: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Asks for two counter types and shows, for every marker of the first,
+	 * the distance to the nearest marker of the second and optionally how
+	 * many of those lie within a radius.
+	 */
+	public void distances() {
+		final String[] typeNames = new String[dynRadioVector.size()];
+		for (int i = 0; i < typeNames.length; i++) {
+			typeNames[i] = dynRadioVector.get(i).getText();
+		}
+		final int last = typeNames.length - 1;
+		final boolean hasDepth = counterImg.getNSlices() > 1;
+
+		final GenericDialog gd = new GenericDialog("Distances");
+		gd.addChoice("From type", typeNames,
+			typeNames[Math.min(distanceFromType, last)]);
+		gd.addChoice("To nearest type", typeNames,
+			typeNames[Math.min(distanceToType, last)]);
+		if (hasDepth) {
+			gd.addChoice("Distance", DISTANCE_MODES,
+				DISTANCE_MODES[distanceThreeD ? 1 : 0]);
+		}
+		gd.addNumericField("Count within radius", distanceRadius, 2, 6,
+			counterImg.getCalibration().getUnits() + " (0 = don't count)");
+		gd.showDialog();
+		if (gd.wasCanceled()) return;
+		distanceFromType = gd.getNextChoiceIndex();
+		distanceToType = gd.getNextChoiceIndex();
+		if (hasDepth) distanceThreeD = gd.getNextChoiceIndex() == 1;
+		distanceRadius = Math.max(0, gd.getNextNumber());
+
+		model.nearestNeighbours(distanceFromType, distanceToType,
+			hasDepth && distanceThreeD, distanceRadius).show("Distances");
+	}
+
+	/**
+	 * Asks for the detection settings and the counter type, and places
+	 * markers on the local maxima of every slice of the counter image. The
+	 * slices are searched in parallel in the background; the time taken per
+	 * slice is shown when done.
+	 */
+	public void seedMarkers() {
+		final Roi roi = counterImg.getRoi();
+		final boolean hasMask = roi != null && roi.getType() != Roi.POINT;
+		final int channels = counterImg.getNChannels();
+		final String[] typeNames = new String[dynRadioVector.size()];
+		for (int i = 0; i < typeNames.length; i++) {
+			typeNames[i] = dynRadioVector.get(i).getText();
+		}
+
+		final GenericDialog gd = new GenericDialog("Seed Markers");
+		gd.addNumericField("Prominence", seedProminence, 2);
+		gd.addNumericField("Smoothing sigma", seedSigma, 1, 6,
+			"pixels (0 = none)");
+		if (hasMask) gd.addCheckbox("Only inside selection", seedUseMask);
+		if (channels > 1) {
+			gd.addNumericField("Channel", seedChannel, 0, 6, "(0 = all)");
+		}
+		gd.addChoice("Counter type", typeNames,
+			typeNames[Math.max(0, currentMarkerIndex)]);
+		gd.showDialog();
+		if (gd.wasCanceled()) return;
+		seedProminence = Math.max(0, gd.getNextNumber());
+		seedSigma = Math.max(0, gd.getNextNumber());
+		if (hasMask) seedUseMask = gd.getNextBoolean();
+		if (channels > 1) {
+			seedChannel =
+				Math.max(0, Math.min(channels, (int) gd.getNextNumber()));
+		}
+		final int type = gd.getNextChoiceIndex();
+
+		new Seeder(hasMask && seedUseMask ? roi : null,
+			channels > 1 ? seedChannel : 0, type).execute();
 	}
 
 	public void reset() {
-		if (typeVector.size() < 1) {
+		if (model.getTypeCount() < 1) {
 			return;
 		}
-		final ListIterator<CellCntrMarkerVector> mit = typeVector.listIterator();
-		while (mit.hasNext()) {
-			final CellCntrMarkerVector mv = mit.next();
-			mv.clear();
+		model.reset();
+		if (journal != null) journal.reset();
+		if (ic != null) {
+			ic.markersChanged();
+			ic.repaint();
 		}
-		if (ic != null) ic.repaint();
 	}
 
 	public void options() {
@@ -713,108 +1026,513 @@ public class CellCounter extends JFrame implements ActionListener, ItemListener
 		commandService.run(CellCounterOptions.class, true);
 	}
 
+	/**
+	 * Shows the number of markers of every type per slice (for stacks) and in
+	 * total, one column per counter type.
+	 */
 	public void report() {
-		String labels = "Slice\t";
-		final boolean isStack = counterImg.getStackSize() > 1;
-		// add the types according to the button vector!!!!
-		final ListIterator<JRadioButton> it = dynRadioVector.listIterator();
-		while (it.hasNext()) {
-			final JRadioButton button = it.next();
-			final String str = button.getText(); // System.out.println(str);
-			labels = labels.concat(str + "\t");
-		}
-		labels = labels.concat("\tC-pos\tZ-pos\tT-pos\t");						// add new columns containing C,Z,T positions
-		
-		IJ.setColumnHeadings(labels);
-		String results = "";
-		if (isStack) {
-			for (int slice = 1; slice <= counterImg.getStackSize(); slice++) {
-				
-				int[] realPosArray = counterImg.convertIndexToPosition(slice); // from the slice we get the array  [channel, slice, frame]
-				final int channel 	= realPosArray[0];
-				final int zPos		= realPosArray[1];
-				final int frame 	= realPosArray[2];
-				
-				results = "";
-				final ListIterator<CellCntrMarkerVector> mit =
-					typeVector.listIterator();
-				final int types = typeVector.size();
-				final int[] typeTotals = new int[types];
-				while (mit.hasNext()) {
-					final int type = mit.nextIndex();
-					final CellCntrMarkerVector mv = mit.next();
-					final ListIterator<CellCntrMarker> tit = mv.listIterator();
-					while (tit.hasNext()) {
-						final CellCntrMarker m = tit.next();
-						if (m.getZ() == slice) {
-							typeTotals[type]++;
-						}
-					}
-				}
-				results = results.concat(slice + "\t");
-				for (int i = 0; i < typeTotals.length; i++) {
-					results = results.concat(typeTotals[i] + "\t");
-				}
-				String cztPosition = String.format("%d\t%d\t%d\t",channel,zPos,frame);	// concat the c,z,t value position 
-				results = results.concat(cztPosition);
-				IJ.write(results);
-			}
-			IJ.write("");
-		}
-		results = "Total\t";
-		final ListIterator<CellCntrMarkerVector> mit = typeVector.listIterator();
-		while (mit.hasNext()) {
-			final CellCntrMarkerVector mv = mit.next();
-			final int count = mv.size();
-			results = results.concat(count + "\t");
-		}
-		IJ.write(results);
+		model.report().show("Results");
 	}
 
+	/**
+	 * Asks for a marker file and loads it in the background. The loaded
+	 * markers replace the current ones in one step once reading has finished.
+	 */
 	public void loadMarkers() {
 		final String filePath =
 			getFilePath(new JFrame(), "Select Marker File", OPEN);
-		final ReadXML rxml = new ReadXML(filePath);
-		final String storedfilename =
-			rxml.readImgProperties(ReadXML.IMAGE_FILE_PATH);
-		if (storedfilename.equals(img.getTitle())) {
-			final Vector<CellCntrMarkerVector> loadedvector = rxml.readMarkerData();
-			typeVector = loadedvector;
-			ic.setTypeVector(typeVector);
-			final int index =
-				Integer.parseInt(rxml.readImgProperties(ReadXML.CURRENT_TYPE));
-			currentMarkerVector = typeVector.get(index);
-			ic.setCurrentMarkerVector(currentMarkerVector);
+		if (filePath == null) return;
+		new MarkerLoader(filePath).execute();
+	}
 
-			while (dynRadioVector.size() > typeVector.size()) {
-				if (dynRadioVector.size() > 1) {
-					final JRadioButton rbutton = dynRadioVector.lastElement();
-					dynButtonPanel.remove(rbutton);
-					radioGrp.remove(rbutton);
-					dynRadioVector.removeElementAt(dynRadioVector.size() - 1);
-					dynGrid.setRows(dynRadioVector.size());
-				}
-				if (txtFieldVector.size() > 1) {
-					final JTextField field = txtFieldVector.lastElement();
-					dynTxtPanel.remove(field);
-					txtFieldVector.removeElementAt(txtFieldVector.size() - 1);
-				}
+	/**
+	 * Asks for a file name and saves a snapshot of the current markers to it
+	 * in the background, so counting can go on meanwhile.
+	 */
+	public void exportMarkers() {
+		String filePath =
+			getFilePath(new JFrame(), "Save Marker File (.xml or " +
+				WriteBinaryMarkers.EXTENSION + ")", SAVE);
+		if (filePath == null) return;
+		if (!filePath.endsWith(WriteBinaryMarkers.EXTENSION) &&
+			!filePath.endsWith(".xml")) filePath += ".xml";
+		new MarkerSaver(filePath).execute();
+	}
+
+	/**
+	 * Asks for a format and a file and streams the marker coordinates to it
+	 * in the background.
+	 */
+	public void exportCsv() {
+		final GenericDialog gd = new GenericDialog("Export CSV");
+		gd.addChoice("Format", EXPORT_FORMATS,
+			EXPORT_FORMATS[exportTabs ? 1 : 0]);
+		gd.addCheckbox("Compress (gzip)", exportGzip);
+		gd.addCheckbox("Include pixel values", exportValues);
+		gd.showDialog();
+		if (gd.wasCanceled()) return;
+		exportTabs = gd.getNextChoiceIndex() == 1;
+		exportGzip = gd.getNextBoolean();
+		exportValues = gd.getNextBoolean();
+
+		final String extension =
+			(exportTabs ? ".tsv" : ".csv") + (exportGzip ? ".gz" : "");
+		final String title = img.getTitle();
+		final int dot = title.lastIndexOf('.');
+		final SaveDialog sd =
+			new SaveDialog("Export CSV", "Markers_" +
+				(dot > 0 ? title.substring(0, dot) : title), extension);
+		if (sd.getFileName() == null) return; // canceled
+		new CsvExporter(sd.getDirectory() + sd.getFileName()).execute();
+	}
+
+	/**
+	 * Asks for a source of points and the counter type to give them, and adds
+	 * them all as markers in one step. Table files are read in the background.
+	 */
+	public void importMarkers() {
+		final Roi roi = getPointSource();
+		final RoiManager rm = RoiManager.getInstance();
+		final Vector<String> sources = new Vector<String>();
+		if (roi != null) sources.add(SOURCE_SELECTION);
+		if (rm != null && rm.getCount() > 0) sources.add(SOURCE_ROI_MANAGER);
+		final Overlay overlay = getOverlaySource();
+		if (overlay != null) sources.add(SOURCE_OVERLAY);
+		sources.add(SOURCE_TABLE);
+		final String[] typeNames = new String[dynRadioVector.size()];
+		for (int i = 0; i < typeNames.length; i++) {
+			typeNames[i] = dynRadioVector.get(i).getText();
+		}
+
+		final GenericDialog gd = new GenericDialog("Import Markers");
+		gd.addChoice("Source", sources.toArray(new String[sources.size()]),
+			sources.contains(importSource) ? importSource : sources.get(0));
+		gd.addChoice("Counter type", typeNames,
+			typeNames[Math.max(0, currentMarkerIndex)]);
+		gd.addMessage("Table rows with a Type column and overlay selections\n" +
+			"named after a counter keep their type.");
+		gd.showDialog();
+		if (gd.wasCanceled()) return;
+		importSource = gd.getNextChoice();
+		final int type = gd.getNextChoiceIndex();
+
+		final CellCntrMarkerImport points =
+			new CellCntrMarkerImport(counterImg);
+		if (importSource.equals(SOURCE_SELECTION)) {
+			points.addRoi(roi, counterImg.getCurrentSlice());
+		}
+		else if (importSource.equals(SOURCE_ROI_MANAGER)) {
+			points.addRoiManager(rm, counterImg.getCurrentSlice());
+		}
+		else if (importSource.equals(SOURCE_OVERLAY)) {
+			points.addOverlay(overlay, typeNames, counterImg.getCurrentSlice());
+		}
+		else {
+			final OpenDialog od = new OpenDialog("Import Markers", null);
+			if (od.getFileName() == null) return; // canceled
+			final String path = od.getDirectory() + od.getFileName();
+			new TableReader(path, type).execute();
+			return;
+		}
+		applyImportedMarkers(points, type);
+	}
+
+	/** Returns the selection of the counter image or else of the original. */
+	private Roi getPointSource() {
+		if (counterImg != null && counterImg.getRoi() != null) {
+			return counterImg.getRoi();
+		}
+		if (img != null && img != counterImg && img.getWindow() != null) {
+			return img.getRoi();
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the point selections in the overlay of the counter image, or
+	 * else of the original, leaving out the markers shown in overlay mode.
+	 */
+	private Overlay getOverlaySource() {
+		for (final ImagePlus imp : new ImagePlus[] { counterImg, img }) {
+			if (imp == null || imp.getOverlay() == null) continue;
+			final Overlay points = new Overlay();
+			for (final Roi r : imp.getOverlay().toArray()) {
+				if (r.getType() != Roi.POINT) continue;
+				if (ic == null || !ic.isMarkerRoi(r)) points.add(r);
 			}
-			final JRadioButton butt = dynRadioVector.get(index);
-			butt.setSelected(true);
+			if (points.size() > 0) return points;
+		}
+		return null;
+	}
+
+	/**
+	 * Adds the imported points with one batched insertion per type, then
+	 * snapshots the journal and updates the window once.
+	 */
+	private void applyImportedMarkers(final CellCntrMarkerImport points,
+		final int type)
+	{
+		final int added = model.importMarkers(points, type);
+		if (journal != null) {
+			journal.compact(model.getTypeVector(),
+				Math.max(0, currentMarkerIndex));
+		}
+		ic.markersChanged();
+		ic.repaint();
+		populateTxtFields();
+		String message = "Imported " + added + " markers";
+		if (points.getSkippedCount() > 0) {
+			message +=
+				", skipped " + points.getSkippedCount() +
+					" points outside the image or unreadable lines";
+		}
+		IJ.showStatus(message);
+	}
+
+	private void applyLoadedMarkers(final CellCntrModel loaded) {
+		if (loaded == null) {
+			IJ.error("Could not read the marker file");
+			return;
+		}
+		if (loaded.getImageFilename().equals(img.getTitle())) {
+			final int index = loaded.getCurrentType();
+			setTypeVector(loaded.getTypeVector(), index);
+			if (journal != null) journal.compact(model.getTypeVector(), index);
 		}
 		else {
 			IJ.error("These Markers do not belong to the current image");
 		}
 	}
 
-	public void exportMarkers() {
-		String filePath =
-			getFilePath(new JFrame(), "Save Marker File (.xml)", SAVE);
-		if (!filePath.endsWith(".xml")) filePath += ".xml";
-		final WriteXML wxml = new WriteXML(filePath);
-		wxml.writeXML(img.getTitle(), typeVector, typeVector
-			.indexOf(currentMarkerVector));
+	/**
+	 * Replaces all markers by {@code newTypeVector}, adding or removing counter
+	 * buttons to match, and selects the type with the given index.
+	 */
+	private void setTypeVector(final Vector<CellCntrMarkerVector> newTypeVector,
+		final int index)
+	{
+		while (dynRadioVector.size() < newTypeVector.size()) {
+			final int i = dynRadioVector.size() + 1;
+			dynGrid.setRows(i);
+			dynButtonPanel.add(makeDynRadioButton(i));
+		}
+		while (dynRadioVector.size() > newTypeVector.size()) {
+			if (dynRadioVector.size() > 1) {
+				final JRadioButton rbutton = dynRadioVector.lastElement();
+				dynButtonPanel.remove(rbutton);
+				radioGrp.remove(rbutton);
+				dynRadioVector.removeElementAt(dynRadioVector.size() - 1);
+				dynGrid.setRows(dynRadioVector.size());
+			}
+			if (txtFieldVector.size() > 1) {
+				final JTextField field = txtFieldVector.lastElement();
+				dynTxtPanel.remove(field);
+				txtFieldVector.removeElementAt(txtFieldVector.size() - 1);
+			}
+		}
+		model.setTypeVector(newTypeVector);
+		model.setCurrentType(index);
+		ic.setTypeVector(newTypeVector);
+		currentMarkerIndex = index;
+		currentMarkerVector = newTypeVector.get(index);
+		ic.setCurrentMarkerVector(currentMarkerVector);
+		final JRadioButton butt = dynRadioVector.get(index);
+		butt.setSelected(true);
+		validateLayout();
+		ic.repaint();
+		populateTxtFields();
+	}
+
+	/** Records a marker just added through the counter window. */
+	void markerAdded(final CellCntrMarkerVector mv, final int x, final int y,
+		final int z)
+	{
+		if (journal == null) return;
+		final Vector<CellCntrMarkerVector> typeVector = model.getTypeVector();
+		journal.markerAdded(typeVector.indexOf(mv), x, y, z);
+		if (journal.needsCompaction()) {
+			final int index = typeVector.indexOf(currentMarkerVector);
+			journal.compact(typeVector, index);
+		}
+	}
+
+	/** Records a marker just removed through the counter window. */
+	void markerRemoved(final CellCntrMarkerVector mv, final int n) {
+		if (journal == null) return;
+		journal.markerRemoved(model.getTypeVector().indexOf(mv), n);
+	}
+
+	/**
+	 * Starts journaling the markers of the given image, first offering to
+	 * recover the markers of a session of the same image that did not end
+	 * normally.
+	 */
+	private void startJournal(final ImagePlus image) {
+		final String title = image.getTitle();
+		final FileInfo fi = image.getOriginalFileInfo();
+		final String path =
+			fi != null && fi.directory != null && fi.fileName != null
+				? fi.directory + fi.fileName : null;
+		if (CellCntrJournal.exists(title, path) &&
+			IJ.showMessageWithCancel("Cell Counter",
+				"Markers of an unfinished session of " + title +
+					" were found.\nRecover them?"))
+		{
+			final Vector<CellCntrMarkerVector> recovered =
+				CellCntrJournal.recover(title, path);
+			if (recovered != null && !recovered.isEmpty()) {
+				setTypeVector(recovered, 0);
+			}
+			else {
+				IJ.error("Could not recover the markers of " + title);
+			}
+		}
+		final Vector<CellCntrMarkerVector> typeVector = model.getTypeVector();
+		journal = new CellCntrJournal(title, path, typeVector,
+			Math.max(0, typeVector.indexOf(currentMarkerVector)));
+	}
+
+	private void stopJournal(final boolean discard) {
+		if (journal == null) return;
+		journal.close(discard);
+		journal = null;
+	}
+
+	@Override
+	public void dispose() {
+		// the session ended normally, so there is nothing left to recover
+		stopJournal(true);
+		super.dispose();
+	}
+
+	private void setFileButtonsEnabled(final boolean enabled) {
+		loadButton.setEnabled(enabled);
+		exportButton.setEnabled(enabled && ic != null);
+		exportCsvButton.setEnabled(enabled && ic != null);
+		importButton.setEnabled(enabled && ic != null);
+		seedButton.setEnabled(enabled && ic != null);
+	}
+
+	/**
+	 * Runs a marker file operation off the Event Dispatch Thread, showing its
+	 * progress in a dialog from which it can be canceled.
+	 */
+	private abstract class MarkerFileWorker<T> extends SwingWorker<T, Void>
+		implements CellCntrProgress, PropertyChangeListener
+	{
+
+		private final ProgressMonitor monitor;
+		/**
+		 * Set by whichever comes first: the background work starting, or
+		 * {@link #done()} of a worker canceled before it started. The file
+		 * buttons are enabled again by that side once it is over.
+		 */
+		private final AtomicBoolean claimed = new AtomicBoolean();
+
+		MarkerFileWorker(final String message) {
+			monitor =
+				new ProgressMonitor(CellCounter.this, message, null, 0, 100);
+			addPropertyChangeListener(this);
+			setFileButtonsEnabled(false);
+		}
+
+		@Override
+		public void progress(final long done, final long total) {
+			if (total > 0) setProgress((int) Math.min(100, 100 * done / total));
+		}
+
+		@Override
+		public boolean isCanceled() {
+			return isCancelled();
+		}
+
+		@Override
+		public void propertyChange(final PropertyChangeEvent evt) {
+			if ("progress".equals(evt.getPropertyName())) {
+				monitor.setProgress((Integer) evt.getNewValue());
+			}
+			if (monitor.isCanceled()) cancel(true);
+		}
+
+		/**
+		 * Runs {@link #work()} and enables the file buttons when it is over.
+		 * Canceling makes {@link #done()} run at once, while the work may
+		 * still be reading or writing for a while; the buttons stay disabled
+		 * until then so that no second load or save can start meanwhile.
+		 */
+		@Override
+		protected final T doInBackground() throws Exception {
+			if (!claimed.compareAndSet(false, true)) return null;
+			try {
+				return work();
+			}
+			finally {
+				SwingUtilities.invokeLater(new Runnable() {
+
+					@Override
+					public void run() {
+						setFileButtonsEnabled(true);
+					}
+				});
+			}
+		}
+
+		@Override
+		protected void done() {
+			monitor.close();
+			// the work never started
+			if (claimed.compareAndSet(false, true)) setFileButtonsEnabled(true);
+			if (isCancelled()) {
+				IJ.showStatus("Canceled");
+				return;
+			}
+			try {
+				finish(get());
+			}
+			catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			catch (final ExecutionException e) {
+				IJ.handleException(e.getCause());
+			}
+		}
+
+		/** Does the work in the background and returns its result. */
+		protected abstract T work() throws Exception;
+
+		/** Called on the Event Dispatch Thread with the result. */
+		protected abstract void finish(T result);
+	}
+
+	private class MarkerLoader extends MarkerFileWorker<CellCntrModel> {
+
+		private final String filePath;
+
+		MarkerLoader(final String filePath) {
+			super("Loading markers from " + new File(filePath).getName());
+			this.filePath = filePath;
+		}
+
+		@Override
+		protected CellCntrModel work() {
+			return CellCntrModel.read(filePath, this);
+		}
+
+		@Override
+		protected void finish(final CellCntrModel loaded) {
+			applyLoadedMarkers(loaded);
+		}
+	}
+
+	private class MarkerSaver extends MarkerFileWorker<Boolean> {
+
+		private final String filePath;
+		private final CellCntrModel snapshot;
+
+		MarkerSaver(final String filePath) {
+			super("Saving markers to " + new File(filePath).getName());
+			this.filePath = filePath;
+			snapshot = model.copy();
+		}
+
+		@Override
+		protected Boolean work() {
+			return snapshot.save(filePath, this);
+		}
+
+		@Override
+		protected void finish(final Boolean saved) {
+			if (!saved) IJ.error("Could not save the markers to " + filePath);
+		}
+	}
+
+	private class CsvExporter extends MarkerFileWorker<Boolean> {
+
+		private final String filePath;
+		private final CellCntrModel snapshot;
+
+		CsvExporter(final String filePath) {
+			super("Exporting markers to " + new File(filePath).getName());
+			this.filePath = filePath;
+			snapshot = model.copy();
+		}
+
+		@Override
+		protected Boolean work() {
+			return snapshot.exportCsv(filePath, exportTabs ? '\t' : ',',
+				exportValues, this);
+		}
+
+		@Override
+		protected void finish(final Boolean exported) {
+			if (!exported) {
+				IJ.error("Could not export the markers to " + filePath);
+			}
+		}
+	}
+
+	private class TableReader extends MarkerFileWorker<CellCntrMarkerImport> {
+
+		private final String filePath;
+		private final int type;
+		private String error;
+
+		TableReader(final String filePath, final int type) {
+			super("Importing markers from " + new File(filePath).getName());
+			this.filePath = filePath;
+			this.type = type;
+		}
+
+		@Override
+		protected CellCntrMarkerImport work() {
+			final CellCntrMarkerImport points =
+				new CellCntrMarkerImport(counterImg);
+			try {
+				points.readCsv(filePath, this);
+			}
+			catch (final IOException e) {
+				error = e.getMessage();
+				return null;
+			}
+			return points;
+		}
+
+		@Override
+		protected void finish(final CellCntrMarkerImport points) {
+			if (points == null) {
+				IJ.error("Could not import the markers: " + error);
+				return;
+			}
+			applyImportedMarkers(points, type);
+		}
+	}
+
+	private class Seeder extends MarkerFileWorker<CellCntrSeeder> {
+
+		private final CellCntrSeeder seeder;
+		private final int type;
+
+		Seeder(final Roi mask, final int channel, final int type) {
+			super("Seeding markers on " + counterImg.getTitle());
+			seeder = new CellCntrSeeder(counterImg, this);
+			seeder.setProminence(seedProminence);
+			seeder.setSigma(seedSigma);
+			seeder.setMask(mask);
+			seeder.setChannel(channel);
+			this.type = type;
+		}
+
+		@Override
+		protected CellCntrSeeder work() {
+			seeder.run();
+			return seeder;
+		}
+
+		@Override
+		protected void finish(final CellCntrSeeder result) {
+			applyImportedMarkers(result.getPoints(type), type);
+			result.getTimings().show("Seeding Times");
+		}
 	}
 
 	public static final int SAVE = FileDialog.SAVE, OPEN = FileDialog.LOAD;
@@ -843,11 +1561,16 @@ public class CellCounter extends JFrame implements ActionListener, ItemListener
 				break;
 		}
 		fd.setVisible(true);
+		if (fd.getFile() == null) return null; // canceled
 		filePathComponents[PATH] = fd.getDirectory();
 		filePathComponents[FILE] = fd.getFile();
 		return filePathComponents[PATH] + filePathComponents[FILE];
 	}
 
+	public CellCntrModel getModel() {
+		return model;
+	}
+
 	public Vector<JRadioButton> getButtonVector() {
 		return dynRadioVector;
 	}
@@ -873,7 +1596,8 @@ public class CellCounter extends JFrame implements ActionListener, ItemListener
 		if (index < 0 || index >= buttons) return;
 		final JRadioButton rbutton = instance.dynRadioVector.elementAt(index);
 		instance.radioGrp.setSelected(rbutton.getModel(), true);
-		instance.currentMarkerVector = instance.typeVector.get(index);
+		instance.model.setCurrentType(index);
+		instance.currentMarkerVector = instance.model.getMarkerVector(index);
 		instance.ic.setCurrentMarkerVector(instance.currentMarkerVector);
 	}
 
@@ -0,0 +1,317 @@
+/*
+ * #%L
+ * Cell Counter plugin for ImageJ.
+ * %%
+ * Copyright (C) 2007 - 2015 Kurt De Vos and Board of Regents of the
+ * University of Wisconsin-Madison.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import ij.IJ;
+import ij.ImagePlus;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+
+import org.scijava.command.Command;
+import org.scijava.command.ContextCommand;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+/**
+ * Counts (and optionally measures) the markers of every marker file in a
+ * directory tree and sums them up in one table. Marker files are the files
+ * named CellCounter_*.xml or CellCounter_*.ccm; each is matched to the image
+ * of the name stored in it, preferably one in the same directory. Files are
+ * processed in parallel, and a file that fails only gets an error in its own
+ * row. When measuring, only a few images are open at a time, and each is
+ * measured on the threads of the batch rather than on threads of its own.
+ */
+@Plugin(type = Command.class,
+	menuPath = "Plugins>Analyze>Cell Counter Batch Summary")
+public class CellCounterBatch extends ContextCommand {
+
+	private static final String PREFIX = "CellCounter_";
+
+	@Parameter
+	private CellCounterService cellCounterService;
+
+	@Parameter
+	private LogService log;
+
+	@Parameter(label = "Directory", style = "directory")
+	private File directory;
+
+	@Parameter(label = "Measure intensities",
+		description = "Open every image and add the mean intensity per type")
+	private boolean measure = false;
+
+	@Parameter(label = "Neighbourhood radius (pixels)", min = "0")
+	private double radius = 0;
+
+	@Parameter(label = "Parallel files", min = "1")
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	@Parameter(label = "Images open at once", min = "1",
+		description = "Limits the memory used when measuring")
+	private int openImages = 2;
+
+	@Parameter(label = "Summary file (empty to show)", style = "save",
+		required = false)
+	private File summaryFile;
+
+	/** All files found, by name, for finding the images. */
+	private final Map<String, List<File>> filesByName =
+		new HashMap<String, List<File>>();
+	private final List<File> markerFiles = new ArrayList<File>();
+
+	private Result[] results;
+	private Semaphore imagePermits;
+
+	// -- Runnable methods --
+
+	@Override
+	public void run() {
+		if (directory == null || !directory.isDirectory()) {
+			cancel("Not a directory: " + directory);
+			return;
+		}
+		filesByName.clear();
+		markerFiles.clear();
+		discover(directory);
+		if (markerFiles.isEmpty()) {
+			cancel("No marker files found in " + directory);
+			return;
+		}
+		final long start = System.currentTimeMillis();
+		results = new Result[markerFiles.size()];
+		imagePermits = new Semaphore(Math.max(1, openImages));
+		final ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+		try {
+			pool.invoke(new FileTask(0, markerFiles.size() - 1));
+		}
+		finally {
+			pool.shutdown();
+		}
+		log.info("Cell Counter batch: " + markerFiles.size() + " files in " +
+			(System.currentTimeMillis() - start) + " ms");
+
+		final CellCntrTable summary = createSummary();
+		if (summaryFile == null || summaryFile.getPath().isEmpty()) {
+			summary.show("Cell Counter Summary");
+			return;
+		}
+		try {
+			summary.saveAsCsv(summaryFile);
+		}
+		catch (final IOException e) {
+			log.error("Could not save the summary to " + summaryFile, e);
+		}
+	}
+
+	// -- Helper methods --
+
+	/** Collects the marker files and indexes all files by name. */
+	private void discover(final File dir) {
+		final File[] files = dir.listFiles();
+		if (files == null) return;
+		Arrays.sort(files); // process and report in a stable order
+		for (final File file : files) {
+			if (file.isDirectory()) {
+				discover(file);
+				continue;
+			}
+			final String name = file.getName();
+			if (name.startsWith(PREFIX) &&
+				(name.endsWith(".xml") ||
+					name.endsWith(WriteBinaryMarkers.EXTENSION)))
+			{
+				markerFiles.add(file);
+				continue;
+			}
+			List<File> sameName = filesByName.get(name);
+			if (sameName == null) {
+				sameName = new ArrayList<File>(1);
+				filesByName.put(name, sameName);
+			}
+			sameName.add(file);
+		}
+	}
+
+	/** Finds the image a marker file belongs to, or returns null. */
+	private File findImage(final File markerFile, final String imageFilename) {
+		final List<File> candidates = filesByName.get(imageFilename);
+		if (candidates == null) return null;
+		for (final File candidate : candidates) {
+			if (candidate.getParentFile().equals(markerFile.getParentFile())) {
+				return candidate;
+			}
+		}
+		return candidates.get(0);
+	}
+
+	/** Processes one marker file; runs on a pool thread. */
+	private Result process(final File markerFile) {
+		final Result result = new Result();
+		try {
+			final CellCntrModel model =
+				cellCounterService.loadMarkers(markerFile.getPath());
+			if (model == null) {
+				result.status = "Error: marker file damaged or unreadable";
+				return result;
+			}
+			result.image = model.getImageFilename();
+			final int types = model.getTypeCount();
+			result.counts = new int[types];
+			for (int t = 0; t < types; t++) {
+				result.counts[t] = model.getMarkerVector(t).size();
+			}
+			final File imageFile = findImage(markerFile, result.image);
+			if (imageFile == null) {
+				result.status = "Image not found";
+				return result;
+			}
+			if (measure) {
+				imagePermits.acquire();
+				try {
+					final ImagePlus imp = IJ.openImage(imageFile.getPath());
+					if (imp == null) {
+						result.status = "Could not open " + imageFile;
+						return result;
+					}
+					try {
+						model.setImage(imp);
+						result.means = meanPerType(model);
+					}
+					finally {
+						imp.flush();
+					}
+				}
+				finally {
+					imagePermits.release();
+				}
+			}
+			result.status = "OK";
+		}
+		catch (final Exception e) {
+			// one bad file must not stop the others
+			log.warn("Cell Counter batch: " + markerFile, e);
+			result.status = "Error: " + e;
+		}
+		return result;
+	}
+
+	/** Returns the mean measured value of the markers of each type. */
+	private double[] meanPerType(final CellCntrModel model) {
+		final CellCntrMeasurement measurement =
+			new CellCntrMeasurement(model.getImage(), model.getTypeVector());
+		measurement.setRadius(radius);
+		measurement.run();
+		return measurement.getMeanPerType();
+	}
+
+	private CellCntrTable createSummary() {
+		final int rows = results.length;
+		int types = 0;
+		for (final Result result : results) {
+			if (result.counts == null) continue;
+			types = Math.max(types, result.counts.length);
+		}
+		final CellCntrTable table = new CellCntrTable(rows);
+		final String[] images = new String[rows];
+		final String[] statuses = new String[rows];
+		final int[][] counts = new int[types][rows];
+		final int[] totals = new int[rows];
+		final double[][] means = new double[types][rows];
+		for (int row = 0; row < rows; row++) {
+			final Result result = results[row];
+			table.setLabel(row, relativePath(markerFiles.get(row)));
+			images[row] = result.image;
+			statuses[row] = result.status;
+			for (int t = 0; t < types; t++) {
+				final int[] c = result.counts;
+				final double[] m = result.means;
+				counts[t][row] = c != null && t < c.length ? c[t] : 0;
+				totals[row] += counts[t][row];
+				means[t][row] = m != null && t < m.length ? m[t] : Double.NaN;
+			}
+		}
+		table.addColumn("Image", images);
+		table.addColumn("Status", statuses);
+		for (int t = 0; t < types; t++) {
+			table.addColumn("Type " + (t + 1), counts[t]);
+		}
+		table.addColumn("Total", totals);
+		if (measure) {
+			for (int t = 0; t < types; t++) {
+				table.addColumn("Mean " + (t + 1), means[t]);
+			}
+		}
+		return table;
+	}
+
+	private String relativePath(final File file) {
+		final String base = directory.getPath();
+		final String path = file.getPath();
+		return path.startsWith(base) ? path.substring(base.length() + 1) : path;
+	}
+
+	// -- Helper classes --
+
+	/** The outcome for one marker file. */
+	private static class Result {
+
+		private String image;
+		private String status;
+		private int[] counts;
+		private double[] means;
+	}
+
+	/** Processes a range of marker files, splitting it up between threads. */
+	private class FileTask extends RecursiveAction {
+
+		private final int first;
+		private final int last;
+
+		FileTask(final int first, final int last) {
+			this.first = first;
+			this.last = last;
+		}
+
+		@Override
+		protected void compute() {
+			if (first == last) {
+				results[first] = process(markerFiles.get(first));
+			}
+			else if (first < last) {
+				final int middle = (first + last) >>> 1;
+				invokeAll(new FileTask(first, middle),
+					new FileTask(middle + 1, last));
+			}
+		}
+	}
+
+}
@@ -22,6 +22,8 @@
  */
 
 import java.awt.Color;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.scijava.options.OptionsPlugin;
 import org.scijava.plugin.Attr;
@@ -66,6 +68,24 @@ public class CellCounterOptions extends OptionsPlugin {
 	@Parameter
 	private ColorRGB color8 = Colors.YELLOW;
 
+	/** Colours made up for types beyond 8, kept so they stay the same. */
+	private static final Map<Integer, Color> randomColors =
+		new HashMap<Integer, Color>();
+
+	// -- OptionsPlugin methods --
+
+	@Override
+	public void save() {
+		super.save();
+		CellCntrColorCache.invalidate();
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		CellCntrColorCache.invalidate();
+	}
+
 	// -- Option accessors --
 
 	public Color getColor(final int id) {
@@ -87,23 +107,31 @@ public class CellCounterOptions extends OptionsPlugin {
 			case 8:
 				return AWTColors.getColor(color8);
 			default:
-				Color c;
-				do {
-					final int r = (int) (255 * Math.random());
-					final int g = (int) (255 * Math.random());
-					final int b = (int) (255 * Math.random());
-					c = new Color(r, g, b);
-				}
-				while (c.equals(Color.blue) || //
-					c.equals(Color.cyan) || //
-					c.equals(Color.green) || //
-					c.equals(Color.magenta) || //
-					c.equals(Color.orange) || //
-					c.equals(Color.pink) || //
-					c.equals(Color.red) || //
-					c.equals(Color.yellow));
-				return c;
+				return randomColor(id);
+		}
+	}
+
+	// -- Helper methods --
+
+	private static synchronized Color randomColor(final int id) {
+		Color c = randomColors.get(id);
+		if (c != null) return c;
+		do {
+			final int r = (int) (255 * Math.random());
+			final int g = (int) (255 * Math.random());
+			final int b = (int) (255 * Math.random());
+			c = new Color(r, g, b);
 		}
+		while (c.equals(Color.blue) || //
+			c.equals(Color.cyan) || //
+			c.equals(Color.green) || //
+			c.equals(Color.magenta) || //
+			c.equals(Color.orange) || //
+			c.equals(Color.pink) || //
+			c.equals(Color.red) || //
+			c.equals(Color.yellow));
+		randomColors.put(id, c);
+		return c;
 	}
 
 }
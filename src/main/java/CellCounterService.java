@@ -0,0 +1,71 @@
+/*
+ * #%L
+ * Cell Counter plugin for ImageJ.
+ * %%
+ * Copyright (C) 2007 - 2015 Kurt De Vos and Board of Regents of the
+ * University of Wisconsin-Madison.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import ij.ImagePlus;
+
+import org.scijava.service.SciJavaService;
+
+/**
+ * Counting without the Cell Counter window: creating and loading marker
+ * sets, saving them and computing the reports and measurements the window
+ * offers. Everything works headless.
+ */
+public interface CellCounterService extends SciJavaService {
+
+	/**
+	 * Creates an empty counter for the given image (which may be null) with
+	 * the default counter types.
+	 */
+	CellCntrModel createModel(ImagePlus image);
+
+	/**
+	 * Reads a marker file (XML or binary).
+	 *
+	 * @return the markers, not yet attached to an image, or null if the file
+	 *         could not be read
+	 */
+	CellCntrModel loadMarkers(String path);
+
+	/** Writes the markers to a file; returns false if that failed. */
+	boolean saveMarkers(CellCntrModel model, String path);
+
+	/** Returns the marker counts per slice and in total. */
+	CellCntrTable report(CellCntrModel model);
+
+	/** Measures the markers on the model's image. */
+	CellCntrTable measure(CellCntrModel model, double radius, boolean sphere,
+		boolean allChannels);
+
+	/**
+	 * Returns the distance from every marker of one type to the nearest
+	 * marker of another, and optionally how many of those lie within a
+	 * radius.
+	 */
+	CellCntrTable nearestNeighbours(CellCntrModel model, int fromType,
+		int toType, boolean threeD, double radius);
+
+	/** Streams the markers to a CSV file; returns false if that failed. */
+	boolean exportCsv(CellCntrModel model, String path, char separator,
+		boolean includeValues);
+
+}
@@ -0,0 +1,88 @@
+/*
+ * #%L
+ * Cell Counter plugin for ImageJ.
+ * %%
+ * Copyright (C) 2007 - 2015 Kurt De Vos and Board of Regents of the
+ * University of Wisconsin-Madison.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import ij.ImagePlus;
+
+import org.scijava.plugin.Plugin;
+import org.scijava.service.AbstractService;
+import org.scijava.service.Service;
+
+/**
+ * Default implementation of {@link CellCounterService}, working on
+ * {@link CellCntrModel}s.
+ */
+@Plugin(type = Service.class)
+public class DefaultCellCounterService extends AbstractService implements
+	CellCounterService
+{
+
+	// -- CellCounterService methods --
+
+	@Override
+	public CellCntrModel createModel(final ImagePlus image) {
+		final CellCntrModel model = new CellCntrModel();
+		model.setImage(image);
+		for (int i = 0; i < CellCntrModel.DEFAULT_TYPES; i++) {
+			model.addType();
+		}
+		return model;
+	}
+
+	@Override
+	public CellCntrModel loadMarkers(final String path) {
+		return CellCntrModel.read(path, null);
+	}
+
+	@Override
+	public boolean saveMarkers(final CellCntrModel model, final String path) {
+		return model.save(path, null);
+	}
+
+	@Override
+	public CellCntrTable report(final CellCntrModel model) {
+		return model.report();
+	}
+
+	@Override
+	public CellCntrTable measure(final CellCntrModel model, final double radius,
+		final boolean sphere, final boolean allChannels)
+	{
+		return model.measure(radius, sphere, allChannels);
+	}
+
+	@Override
+	public CellCntrTable nearestNeighbours(final CellCntrModel model,
+		final int fromType, final int toType, final boolean threeD,
+		final double radius)
+	{
+		return model.nearestNeighbours(fromType, toType, threeD, radius);
+	}
+
+	@Override
+	public boolean exportCsv(final CellCntrModel model, final String path,
+		final char separator, final boolean includeValues)
+	{
+		return model.exportCsv(path, separator, includeValues, null);
+	}
+
+}
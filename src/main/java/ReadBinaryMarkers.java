@@ -0,0 +1,200 @@
+/*
+ * #%L
+ * Cell Counter plugin for ImageJ.
+ * %%
+ * Copyright (C) 2007 - 2015 Kurt De Vos and Board of Regents of the
+ * University of Wisconsin-Madison.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Vector;
+
+/**
+ * Reads a marker file in the binary format written by
+ * {@link WriteBinaryMarkers}. The coordinate columns are read in bulk, a
+ * chunk at a time, into the marker vectors. The file is not memory-mapped,
+ * so it is released as soon as reading ends and can be overwritten or
+ * deleted right away. Offers the same accessors as {@link ReadXML}.
+ */
+public class ReadBinaryMarkers {
+
+	private static final int CHUNK = 1 << 16;
+
+	private boolean failed;
+	private String imageFilename;
+	private String currentType;
+	private final Vector<CellCntrMarkerVector> typeVector =
+		new Vector<CellCntrMarkerVector>();
+
+	private final CellCntrProgress progress;
+
+	public ReadBinaryMarkers(final String filePath) {
+		this(filePath, null);
+	}
+
+	/**
+	 * Reads the given file, reporting the markers read so far to
+	 * {@code progress}, which may also cancel the reading.
+	 */
+	public ReadBinaryMarkers(final String filePath,
+		final CellCntrProgress progress)
+	{
+		this.progress = progress;
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(filePath, "r");
+			read(raf.getChannel());
+		}
+		catch (final IOException e) {
+			failed = true;
+			System.out.println("IOException " + e.getMessage());
+		}
+		finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				}
+				catch (final IOException e) {
+					System.out.println("IOException " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	public String readImgProperties(final int valueID) {
+		switch (valueID) {
+			case (ReadXML.IMAGE_FILE_PATH):
+				return imageFilename;
+			case (ReadXML.CURRENT_TYPE):
+				return currentType;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the markers read, or null if the file is damaged or could not
+	 * be read to the end.
+	 */
+	public Vector<CellCntrMarkerVector> readMarkerData() {
+		return failed ? null : typeVector;
+	}
+
+	// -- Helper methods --
+
+	private void read(final FileChannel channel) throws IOException {
+		final long size = channel.size();
+		final ByteBuffer header = ByteBuffer.allocate(12);
+		readFully(channel, header, 0);
+		if (header.getInt() != WriteBinaryMarkers.MAGIC) {
+			throw new IOException("Not a Cell Counter marker file");
+		}
+		final int version = header.getInt();
+		if (version != WriteBinaryMarkers.VERSION) {
+			throw new IOException("Unsupported marker file version " + version);
+		}
+		final int nameLength = header.getInt();
+		final long padded = (nameLength + 3L) & ~3L;
+		if (nameLength < 0 || 12 + padded + 8 > size) {
+			throw new IOException("Marker file header is corrupt");
+		}
+
+		final ByteBuffer table = ByteBuffer.allocate((int) padded + 8);
+		readFully(channel, table, 12);
+		imageFilename =
+			new String(table.array(), 0, nameLength, WriteBinaryMarkers.UTF8);
+		table.position((int) padded);
+		currentType = Integer.toString(table.getInt());
+		final int types = table.getInt();
+		final long countsOffset = 12 + padded + 8;
+		if (types < 0 || countsOffset + 8L * types > size) {
+			throw new IOException("Marker file header is corrupt");
+		}
+
+		final ByteBuffer counts = ByteBuffer.allocate(8 * types);
+		readFully(channel, counts, countsOffset);
+		long offset = countsOffset + 8L * types;
+		long total = 0;
+		for (int t = 0; t < types; t++) {
+			final int count = counts.getInt(8 * t + 4);
+			if (count < 0) {
+				throw new IOException("Marker file header is corrupt");
+			}
+			total += count;
+		}
+		if (offset + 12 * total > size) {
+			throw new IOException("Marker file is truncated");
+		}
+		long done = 0;
+
+		final ByteBuffer chunk = ByteBuffer.allocate(4 * CHUNK);
+		final int[] x = new int[CHUNK];
+		final int[] y = new int[CHUNK];
+		final int[] z = new int[CHUNK];
+		for (int t = 0; t < types; t++) {
+			final CellCntrMarkerVector markerVector =
+				new CellCntrMarkerVector(counts.getInt());
+			final int count = counts.getInt();
+			final long columnBytes = 4L * count;
+			for (int off = 0; off < count; off += CHUNK) {
+				final int n = Math.min(CHUNK, count - off);
+				final long position = offset + 4L * off;
+				readColumn(channel, chunk, position, x, n);
+				readColumn(channel, chunk, position + columnBytes, y, n);
+				readColumn(channel, chunk, position + 2 * columnBytes, z, n);
+				markerVector.addMarkers(x, y, z, n);
+				done += n;
+				if (progress != null) {
+					if (progress.isCanceled()) {
+						throw new InterruptedIOException("Canceled");
+					}
+					progress.progress(done, total);
+				}
+			}
+			offset += 3 * columnBytes;
+			typeVector.add(markerVector);
+		}
+	}
+
+	/** Reads {@code n} ints at {@code position} into {@code values}. */
+	private static void readColumn(final FileChannel channel,
+		final ByteBuffer chunk, final long position, final int[] values,
+		final int n) throws IOException
+	{
+		chunk.clear();
+		chunk.limit(4 * n);
+		readFully(channel, chunk, position);
+		chunk.asIntBuffer().get(values, 0, n);
+	}
+
+	private static void readFully(final FileChannel channel,
+		final ByteBuffer buffer, final long position) throws IOException
+	{
+		long pos = position;
+		while (buffer.hasRemaining()) {
+			final int n = channel.read(buffer, pos);
+			if (n < 0) throw new IOException("Marker file is truncated");
+			pos += n;
+		}
+		buffer.flip();
+	}
+
+}
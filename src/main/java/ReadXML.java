@@ -23,143 +23,262 @@
 
 // Created on 27 November 2004, 10:47
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.util.Vector;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 /**
- * TODO
+ * Reads a CellCounter_Marker_File. The file is streamed once, in the
+ * constructor, straight into {@link CellCntrMarkerVector}s, so no document
+ * tree is built however many markers it holds.
  *
  * @author Kurt De Vos
  */
 public class ReadXML {
 
+	private static final int BUFFER_SIZE = 1 << 16;
+
 	private boolean verbose;
-	private DocumentBuilderFactory dbf;
-	private DocumentBuilder db;
-	private Document doc;
-	private String str;
+	private boolean failed;
+	private String imageFilename;
+	private String currentType;
+	private final Vector<CellCntrMarkerVector> typeVector =
+		new Vector<CellCntrMarkerVector>();
 	public static final int IMAGE_FILE_PATH = 0;
 	public static final int CURRENT_TYPE = 1;
 
+	// which value the parser is currently reading
+	private static final int NONE = 0;
+	private static final int TYPE = 1;
+	private static final int MARKER_X = 2;
+	private static final int MARKER_Y = 3;
+	private static final int MARKER_Z = 4;
+
+	private int valueField;
+	private int value;
+	private boolean negative;
+
 	/**
 	 * Creates a new instance of ODReadXMLODD
 	 */
 	public ReadXML(final String XMLFilePath) {
+		this(XMLFilePath, null);
+	}
+
+	/**
+	 * Reads the given file, reporting the fraction of bytes read to
+	 * {@code progress}, which may also cancel the reading.
+	 */
+	public ReadXML(final String XMLFilePath, final CellCntrProgress progress) {
 		setVerbose(verbose);
+		InputStream in = null;
 		try {
-			dbf = DocumentBuilderFactory.newInstance();
-			db = dbf.newDocumentBuilder();
-			doc = db.parse(new File(XMLFilePath));
-			doc.getDocumentElement().normalize();
+			in = new FileInputStream(XMLFilePath);
+			if (progress != null) {
+				in =
+					new ProgressInputStream(in, new File(XMLFilePath).length(),
+						progress);
+			}
+			in = new BufferedInputStream(in, BUFFER_SIZE);
+			final XMLInputFactory factory = XMLInputFactory.newInstance();
+			factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+			final XMLStreamReader reader = factory.createXMLStreamReader(in);
+			try {
+				parse(reader);
+			}
+			finally {
+				reader.close();
+			}
 		}
-		catch (final SAXException e) {
+		catch (final XMLStreamException e) {
+			failed = true;
+			if (progress != null && progress.isCanceled()) {
+				System.out.println("Reading " + XMLFilePath + " was canceled.");
+				return;
+			}
 			System.out.println(e.getMessage());
 			System.out.println(XMLFilePath + " is not well-formed.");
 		}
 		catch (final IOException e) {
+			failed = true;
 			System.out.println("IOException " + e.getMessage());
 		}
-		catch (final ParserConfigurationException e) {
-			System.out.println("ParserConfigurationException " + e.getMessage());
+		catch (final NumberFormatException e) {
+			failed = true;
+			System.out.println(e.getMessage());
+			System.out.println(XMLFilePath + " holds an invalid coordinate.");
+		}
+		finally {
+			if (in != null) {
+				try {
+					in.close();
+				}
+				catch (final IOException e) {
+					System.out.println("IOException " + e.getMessage());
+				}
+			}
 		}
 	}
 
 	public String readImgProperties(final int valueID) { // as URL
 		switch (valueID) {
 			case (IMAGE_FILE_PATH):
-				str = readSingleValue(doc, "Image_Filename");
-				break;
+				return imageFilename;
 			case (CURRENT_TYPE):
-				str = readSingleValue(doc, "Current_Type");
-				break;
-		}
-		if (str != null) {
-			return str;
+				return currentType;
 		}
 		return null;
 	}
 
+	/**
+	 * Returns the markers read, or null if the file could not be read to the
+	 * end, so that a damaged file is never taken for a complete one.
+	 */
 	public Vector<CellCntrMarkerVector> readMarkerData() {
-		final Vector<CellCntrMarkerVector> typeVector =
-			new Vector<CellCntrMarkerVector>();
-
-		final NodeList markerTypeNodeList = getNodeListFromTag(doc, "Marker_Type");
-		for (int i = 0; i < markerTypeNodeList.getLength(); i++) {
-			final Element markerTypeElement = getElement(markerTypeNodeList, i);
-			final NodeList typeNodeList =
-				markerTypeElement.getElementsByTagName("Type");
-			final CellCntrMarkerVector markerVector =
-				new CellCntrMarkerVector(Integer.parseInt(readValue(typeNodeList, 0)));
-
-			final NodeList markerNodeList =
-				markerTypeElement.getElementsByTagName("Marker");
-			for (int j = 0; j < markerNodeList.getLength(); j++) {
-				final Element markerElement = getElement(markerNodeList, j);
-				final NodeList markerXNodeList =
-					markerElement.getElementsByTagName("MarkerX");
-				final NodeList markerYNodeList =
-					markerElement.getElementsByTagName("MarkerY");
-				final NodeList markerZNodeList =
-					markerElement.getElementsByTagName("MarkerZ");
-				final CellCntrMarker marker = new CellCntrMarker();
-				marker.setX(Integer.parseInt(readValue(markerXNodeList, 0)));
-				marker.setY(Integer.parseInt(readValue(markerYNodeList, 0)));
-				marker.setZ(Integer.parseInt(readValue(markerZNodeList, 0)));
-				markerVector.add(marker);
-			}
-			typeVector.add(markerVector);
-		}
-		return typeVector;
+		return failed ? null : typeVector;
 	}
 
-	private String readValue(final NodeList nodeList, final int index)
-		throws NullPointerException
-	{
-		final Element element = getElement(nodeList, index);
-		debugReport("Element = " + element.getNodeName());
-		final NodeList elementNodeList = getChildNodes(element);
-		final String str = getValue(elementNodeList, 0);
-		return str;
+	private void parse(final XMLStreamReader reader) throws XMLStreamException {
+		CellCntrMarkerVector markerVector = null;
+		int x = 0;
+		int y = 0;
+		int z = 0;
+		while (reader.hasNext()) {
+			switch (reader.next()) {
+				case XMLStreamConstants.START_ELEMENT: {
+					final String name = reader.getLocalName();
+					if (verbose) debugReport("Element = " + name);
+					if (name.equals("MarkerX")) startValue(MARKER_X);
+					else if (name.equals("MarkerY")) startValue(MARKER_Y);
+					else if (name.equals("MarkerZ")) startValue(MARKER_Z);
+					else if (name.equals("Marker")) {
+						x = 0;
+						y = 0;
+						z = 0;
+					}
+					else if (name.equals("Type")) startValue(TYPE);
+					else if (name.equals("Marker_Type")) {
+						markerVector = new CellCntrMarkerVector(0);
+					}
+					else if (name.equals("Image_Filename")) {
+						imageFilename = reader.getElementText().trim();
+					}
+					else if (name.equals("Current_Type")) {
+						currentType = reader.getElementText().trim();
+					}
+					break;
+				}
+				case XMLStreamConstants.CHARACTERS:
+					if (valueField != NONE) {
+						appendDigits(reader.getTextCharacters(), reader.getTextStart(),
+							reader.getTextLength());
+					}
+					break;
+				case XMLStreamConstants.END_ELEMENT: {
+					final int v = negative ? -value : value;
+					switch (valueField) {
+						case MARKER_X:
+							x = v;
+							break;
+						case MARKER_Y:
+							y = v;
+							break;
+						case MARKER_Z:
+							z = v;
+							break;
+						case TYPE:
+							if (markerVector != null) markerVector.setType(v);
+							break;
+						default:
+							final String name = reader.getLocalName();
+							if (markerVector == null) break;
+							if (name.equals("Marker")) markerVector.addMarker(x, y, z);
+							else if (name.equals("Marker_Type")) {
+								typeVector.add(markerVector);
+								markerVector = null;
+							}
+					}
+					valueField = NONE;
+					break;
+				}
+			}
+		}
 	}
 
-	private String readSingleValue(final Document doc, final String elementName) {
-		NodeList nodeList = getNodeListFromTag(doc, elementName);
-		final Element element = getElement(nodeList, 0);
-		nodeList = getChildNodes(element);
-		final String str = getValue(nodeList, 0);
-		return str;
+	private void startValue(final int field) {
+		valueField = field;
+		value = 0;
+		negative = false;
 	}
 
-	private NodeList getNodeListFromTag(final Document doc,
-		final String elementName)
+	/** Parses integer text in place, without creating a String for it. */
+	private void appendDigits(final char[] text, final int start,
+		final int length)
 	{
-		final NodeList nodeList = doc.getElementsByTagName(elementName);
-		return nodeList;
+		for (int i = start; i < start + length; i++) {
+			final char c = text[i];
+			if (c >= '0' && c <= '9') value = value * 10 + (c - '0');
+			else if (c == '-') negative = true;
+			else if (!Character.isWhitespace(c)) {
+				throw new NumberFormatException("Not an integer: " +
+					new String(text, start, length).trim());
+			}
+		}
 	}
 
-	private NodeList getChildNodes(final Element element) {
-		final NodeList nodeList = element.getChildNodes();
-		return nodeList;
-	}
+	/** Reports the bytes read so far, about once per megabyte. */
+	private static class ProgressInputStream extends FilterInputStream {
 
-	private Element getElement(final NodeList nodeList, final int index) {
-		final Element element = (Element) nodeList.item(index);
-		return element;
-	}
+		private static final long REPORT_INTERVAL = 1 << 20;
 
-	private String getValue(final NodeList nodeList, final int index) {
-		final String str = nodeList.item(index).getNodeValue().trim();
-		return str;
+		private final long total;
+		private final CellCntrProgress progress;
+		private long count;
+		private long reported;
+
+		ProgressInputStream(final InputStream in, final long total,
+			final CellCntrProgress progress)
+		{
+			super(in);
+			this.total = total;
+			this.progress = progress;
+		}
+
+		@Override
+		public int read() throws IOException {
+			final int b = super.read();
+			if (b >= 0) advance(1);
+			return b;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len)
+			throws IOException
+		{
+			final int n = super.read(b, off, len);
+			if (n > 0) advance(n);
+			return n;
+		}
+
+		private void advance(final int n) throws IOException {
+			count += n;
+			if (count - reported < REPORT_INTERVAL) return;
+			reported = count;
+			if (progress.isCanceled()) {
+				throw new InterruptedIOException("Canceled");
+			}
+			progress.progress(count, total);
+		}
 	}
 
 	public void debugReport(final String report) {
@@ -0,0 +1,195 @@
+/*
+ * #%L
+ * Cell Counter plugin for ImageJ.
+ * %%
+ * Copyright (C) 2007 - 2015 Kurt De Vos and Board of Regents of the
+ * University of Wisconsin-Madison.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import ij.IJ;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ListIterator;
+import java.util.Vector;
+
+/**
+ * Writes markers in the compact binary marker format, an alternative to the
+ * XML written by {@link WriteXML} that {@link ReadBinaryMarkers} can load by
+ * bulk-copying whole coordinate columns. All values are big-endian ints:
+ * <ol>
+ * <li>the magic number {@link #MAGIC} and the format {@link #VERSION}</li>
+ * <li>the image filename, as a byte count followed by UTF-8 bytes padded
+ * with zeros to a multiple of four</li>
+ * <li>the index of the current type and the number of types</li>
+ * <li>for each type its type number and marker count</li>
+ * <li>for each type its x column, then its y column, then its z column</li>
+ * </ol>
+ */
+public class WriteBinaryMarkers {
+
+	/** File extension that selects the binary format. */
+	public static final String EXTENSION = ".ccm";
+
+	/** "CCMK" */
+	public static final int MAGIC = 0x43434d4b;
+	public static final int VERSION = 1;
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int BUFFER_SIZE = 1 << 18;
+
+	private final File file;
+	private FileChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private final CellCntrProgress progress;
+	private long done;
+	private long total;
+
+	public WriteBinaryMarkers(final String filePath) {
+		this(filePath, null);
+	}
+
+	/**
+	 * Prepares to write the given file, reporting the coordinates written so
+	 * far to {@code progress}, which may also cancel the writing.
+	 */
+	public WriteBinaryMarkers(final String filePath,
+		final CellCntrProgress progress)
+	{
+		file = new File(filePath);
+		this.progress = progress;
+	}
+
+	public boolean write(final String imgFilename,
+		final Vector<CellCntrMarkerVector> typeVector, final int currentType)
+	{
+		final long start = System.currentTimeMillis();
+		File tmp = null;
+		try {
+			tmp =
+				File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile()
+					.getParentFile());
+			final FileOutputStream out = new FileOutputStream(tmp);
+			long markers = 0;
+			try {
+				channel = out.getChannel();
+				buffer.clear();
+				final byte[] name = imgFilename.getBytes(UTF8);
+				buffer.putInt(MAGIC);
+				buffer.putInt(VERSION);
+				buffer.putInt(name.length);
+				write(name);
+				buffer.putInt(currentType);
+				buffer.putInt(typeVector.size());
+				ListIterator<CellCntrMarkerVector> it = typeVector.listIterator();
+				while (it.hasNext()) {
+					final CellCntrMarkerVector markerVector = it.next();
+					ensureRoom(8);
+					buffer.putInt(markerVector.getType());
+					buffer.putInt(markerVector.size());
+					markers += markerVector.size();
+				}
+				done = 0;
+				total = 3 * markers;
+				it = typeVector.listIterator();
+				while (it.hasNext()) {
+					final CellCntrMarkerVector markerVector = it.next();
+					writeColumn(markerVector.getXColumn(), markerVector.size());
+					writeColumn(markerVector.getYColumn(), markerVector.size());
+					writeColumn(markerVector.getZColumn(), markerVector.size());
+				}
+				drain();
+				channel.force(true); // on disk before it replaces the old file
+			}
+			finally {
+				out.close();
+			}
+			WriteXML.replace(tmp, file);
+			tmp = null;
+
+			final long time = Math.max(1, System.currentTimeMillis() - start);
+			IJ.showStatus("Saved " + markers + " markers in " + time + " ms (" +
+				markers * 1000 / time + " markers/s)");
+			return true;
+		}
+		catch (final IOException e) {
+			System.out.println(e.getMessage());
+			return false;
+		}
+		finally {
+			if (tmp != null && !tmp.delete()) tmp.deleteOnExit();
+		}
+	}
+
+	// -- Helper methods --
+
+	/** Writes bytes padded with zeros to a multiple of four. */
+	private void write(final byte[] bytes) throws IOException {
+		final int padded = (bytes.length + 3) & ~3;
+		int off = 0;
+		while (off < padded) {
+			ensureRoom(4);
+			final int n = Math.min(buffer.remaining(), padded - off);
+			for (int i = off; i < off + n; i++) {
+				buffer.put(i < bytes.length ? bytes[i] : 0);
+			}
+			off += n;
+		}
+	}
+
+	private void writeColumn(final int[] column, final int count)
+		throws IOException
+	{
+		int off = 0;
+		while (off < count) {
+			ensureRoom(4);
+			final IntBuffer ints = buffer.asIntBuffer();
+			final int n = Math.min(ints.remaining(), count - off);
+			ints.put(column, off, n);
+			buffer.position(buffer.position() + 4 * n);
+			off += n;
+			done += n;
+			if (progress != null) {
+				if (progress.isCanceled()) {
+					throw new InterruptedIOException("Canceled");
+				}
+				progress.progress(done, total);
+			}
+		}
+	}
+
+	private void ensureRoom(final int bytes) throws IOException {
+		if (buffer.remaining() < bytes) drain();
+	}
+
+	private void drain() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+}
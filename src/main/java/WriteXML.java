@@ -23,94 +23,248 @@
 
 // Created on 23 November 2004, 22:56
 
-import java.io.BufferedOutputStream;
-import java.io.FileNotFoundException;
+import ij.IJ;
+
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ListIterator;
 import java.util.Vector;
 
 /**
- * TODO
+ * Writes a CellCounter_Marker_File. The XML is formatted directly into a
+ * byte buffer, numbers included, and written to a temporary file next to the
+ * target, which is synced to disk and then replaces the target in one step.
+ * An interrupted save or a crash therefore never leaves a half-written
+ * marker file behind.
  *
  * @author Kurt De Vos
  */
 public class WriteXML {
 
-	private OutputStream XMLFileOut;
-	private OutputStream XMLBuffOut;
-	private OutputStreamWriter out;
+	private static final int BUFFER_SIZE = 1 << 18;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final byte[] HEADER =
+		bytes("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n" +
+			"<CellCounter_Marker_File>\r\n" + " <Image_Properties>\r\n" +
+			"     <Image_Filename>");
+	private static final byte[] IMAGE_PROPERTIES_END =
+		bytes("</Image_Filename>\r\n" + " </Image_Properties>\r\n" +
+			" <Marker_Data>\r\n" + "     <Current_Type>");
+	private static final byte[] CURRENT_TYPE_END =
+		bytes("</Current_Type>\r\n");
+	private static final byte[] MARKER_TYPE_START =
+		bytes("     <Marker_Type>\r\n" + "         <Type>");
+	private static final byte[] TYPE_END = bytes("</Type>\r\n");
+	private static final byte[] MARKER_X =
+		bytes("         <Marker>\r\n" + "             <MarkerX>");
+	private static final byte[] MARKER_Y =
+		bytes("</MarkerX>\r\n" + "             <MarkerY>");
+	private static final byte[] MARKER_Z =
+		bytes("</MarkerY>\r\n" + "             <MarkerZ>");
+	private static final byte[] MARKER_END =
+		bytes("</MarkerZ>\r\n" + "         </Marker>\r\n");
+	private static final byte[] MARKER_TYPE_END =
+		bytes("     </Marker_Type>\r\n");
+	private static final byte[] FOOTER =
+		bytes(" </Marker_Data>\r\n" + "</CellCounter_Marker_File>\r\n");
+
+	private final File file;
+	private OutputStream out;
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int pos;
+
+	/** Markers written between two progress reports. */
+	private static final int REPORT_INTERVAL = 1 << 16;
+
+	private final CellCntrProgress progress;
 
 	/**
 	 * Creates a new instance of ODWriteXMLODD
 	 */
 	public WriteXML(final String XMLFilepath) {
-		try {
-			XMLFileOut = new FileOutputStream(XMLFilepath); // add FilePath
-			XMLBuffOut = new BufferedOutputStream(XMLFileOut);
-			out = new OutputStreamWriter(XMLBuffOut, "UTF-8");
-		}
-		catch (final FileNotFoundException e) {
-			System.out.println("File Not Found " + e.getMessage());
-		}
-		catch (final UnsupportedEncodingException e) {
-			System.out.println("This VM does not support the UTF-8 character set. " +
-				e.getMessage());
-		}
+		this(XMLFilepath, null);
+	}
+
+	/**
+	 * Prepares to write the given file, reporting the markers written so far
+	 * to {@code progress}, which may also cancel the writing.
+	 */
+	public WriteXML(final String XMLFilepath, final CellCntrProgress progress) {
+		file = new File(XMLFilepath);
+		this.progress = progress;
 	}
 
 	public boolean writeXML(final String imgFilename,
 		final Vector<CellCntrMarkerVector> typeVector, final int currentType)
 	{
+		final long start = System.currentTimeMillis();
+		File tmp = null;
 		try {
-			out.write("<?xml version=\"1.0\" ");
-			out.write("encoding=\"UTF-8\"?>\r\n");
-			out.write("<CellCounter_Marker_File>\r\n");
-
-			// write the image properties
-			out.write(" <Image_Properties>\r\n");
-			out
-				.write("     <Image_Filename>" + imgFilename + "</Image_Filename>\r\n");
-			out.write(" </Image_Properties>\r\n");
-
-			// write the marker data
-			out.write(" <Marker_Data>\r\n");
-			out.write("     <Current_Type>" + currentType + "</Current_Type>\r\n");
-			final ListIterator<CellCntrMarkerVector> it = typeVector.listIterator();
-			while (it.hasNext()) {
-				final CellCntrMarkerVector markerVector = it.next();
-				final int type = markerVector.getType();
-				out.write("     <Marker_Type>\r\n");
-				out.write("         <Type>" + type + "</Type>\r\n");
-				final ListIterator<CellCntrMarker> lit = markerVector.listIterator();
-				while (lit.hasNext()) {
-					final CellCntrMarker marker = lit.next();
-					final int x = marker.getX();
-					final int y = marker.getY();
-					final int z = marker.getZ();
-					out.write("         <Marker>\r\n");
-					out.write("             <MarkerX>" + x + "</MarkerX>\r\n");
-					out.write("             <MarkerY>" + y + "</MarkerY>\r\n");
-					out.write("             <MarkerZ>" + z + "</MarkerZ>\r\n");
-					out.write("         </Marker>\r\n");
-				}
-				out.write("     </Marker_Type>\r\n");
+			tmp =
+				File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile()
+					.getParentFile());
+			final FileOutputStream fileOut = new FileOutputStream(tmp);
+			out = fileOut;
+			long total = 0;
+			for (final CellCntrMarkerVector markerVector : typeVector) {
+				total += markerVector.size();
 			}
+			long markers = 0;
+			try {
+				write(HEADER);
+				write(bytes(escape(imgFilename)));
+				write(IMAGE_PROPERTIES_END);
+				write(currentType);
+				write(CURRENT_TYPE_END);
 
-			out.write(" </Marker_Data>\r\n");
-			out.write("</CellCounter_Marker_File>\r\n");
+				// write the marker data
+				final ListIterator<CellCntrMarkerVector> it = typeVector.listIterator();
+				while (it.hasNext()) {
+					final CellCntrMarkerVector markerVector = it.next();
+					write(MARKER_TYPE_START);
+					write(markerVector.getType());
+					write(TYPE_END);
+					final int size = markerVector.size();
+					for (int i = 0; i < size; i++) {
+						write(MARKER_X);
+						write(markerVector.getX(i));
+						write(MARKER_Y);
+						write(markerVector.getY(i));
+						write(MARKER_Z);
+						write(markerVector.getZ(i));
+						write(MARKER_END);
+						if ((i + 1) % REPORT_INTERVAL == 0) {
+							reportProgress(markers + i + 1, total);
+						}
+					}
+					write(MARKER_TYPE_END);
+					markers += size;
+				}
+				write(FOOTER);
+				flush();
+				// on disk before it replaces the old file, which a crash
+				// could otherwise leave empty
+				fileOut.getChannel().force(true);
+			}
+			finally {
+				out.close();
+			}
+			replace(tmp, file);
+			tmp = null;
 
-			out.flush(); // Don't forget to flush!
-			out.close();
+			final long time = Math.max(1, System.currentTimeMillis() - start);
+			IJ.showStatus("Saved " + markers + " markers in " + time + " ms (" +
+				markers * 1000 / time + " markers/s)");
 			return true;
 		}
 		catch (final IOException e) {
 			System.out.println(e.getMessage());
 			return false;
 		}
+		finally {
+			if (tmp != null && !tmp.delete()) tmp.deleteOnExit();
+		}
+	}
+
+	// -- Helper methods --
+
+	private void reportProgress(final long done, final long total)
+		throws IOException
+	{
+		if (progress == null) return;
+		if (progress.isCanceled()) throw new InterruptedIOException("Canceled");
+		progress.progress(done, total);
+	}
+
+	private void write(final byte[] b) throws IOException {
+		if (pos + b.length > buffer.length) flush();
+		if (b.length > buffer.length) {
+			out.write(b);
+			return;
+		}
+		System.arraycopy(b, 0, buffer, pos, b.length);
+		pos += b.length;
+	}
+
+	/** Formats a decimal integer straight into the buffer. */
+	private void write(final int value) throws IOException {
+		if (pos + 11 > buffer.length) flush();
+		long v = value;
+		if (v < 0) {
+			buffer[pos++] = '-';
+			v = -v;
+		}
+		int digits = 1;
+		for (long p = 10; p <= v; p *= 10) {
+			digits++;
+		}
+		for (int i = pos + digits - 1; i >= pos; i--) {
+			buffer[i] = (byte) ('0' + v % 10);
+			v /= 10;
+		}
+		pos += digits;
+	}
+
+	private void flush() throws IOException {
+		out.write(buffer, 0, pos);
+		pos = 0;
+	}
+
+	/**
+	 * Moves a finished temporary file over the target, atomically where the
+	 * file system allows it. The caller forces the file to disk first, so
+	 * that the new name never points at data that is not written yet.
+	 */
+	static void replace(final File source, final File target)
+		throws IOException
+	{
+		try {
+			Files.move(source.toPath(), target.toPath(),
+				StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (final AtomicMoveNotSupportedException e) {
+			Files.move(source.toPath(), target.toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static String escape(final String text) {
+		final StringBuilder sb = new StringBuilder(text.length());
+		for (int i = 0; i < text.length(); i++) {
+			final char c = text.charAt(i);
+			switch (c) {
+				case '<':
+					sb.append("&lt;");
+					break;
+				case '>':
+					sb.append("&gt;");
+					break;
+				case '&':
+					sb.append("&amp;");
+					break;
+				case '"':
+					sb.append("&quot;");
+					break;
+				case '\'':
+					sb.append("&apos;");
+					break;
+				default:
+					sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	private static byte[] bytes(final String s) {
+		return s.getBytes(UTF8);
 	}
 
 }